@@ -0,0 +1,147 @@
+import java.util.Arrays;
+
+/**
+ * The road graph seen as junctions joined by chains. Most road nodes are shape points of a way,
+ * with exactly two neighbors; a search only has to stop at the junctions, the nodes of any other
+ * degree, and can cross each chain of shape points between two of them as a single edge.
+ * <p>
+ * A chain is indexed by the road edge it leaves its junction by, so the chains out of junction
+ * v are those of edges roads.offsets[v] .. roads.offsets[v + 1] - 1, and their weights line up
+ * with the edge weights. The shape points themselves stay in the RoadGraph, which snapping and
+ * route drawing need them in; each chain keeps the road edges it runs along packed in one
+ * array, so its geometry and weight can be read off without searching.
+ * </p>
+ */
+public class ChainGraph {
+    private final RoadGraph roads;
+    private final boolean[] junction;
+    private final int junctionCount;
+    /** For an edge leaving a junction, the junction at the far end of its chain; else -1. */
+    final int[] head;
+    /**
+     * The road edges of the chain of edge e, after e itself, are
+     * links[linkOffsets[e]] .. links[linkOffsets[e + 1] - 1].
+     */
+    private final int[] linkOffsets;
+    private final int[] links;
+
+    ChainGraph(RoadGraph roads) {
+        this.roads = roads;
+        int n = roads.size();
+        int[] inDegree = new int[n];
+        for (int w : roads.neighbors) {
+            inDegree[w]++;
+        }
+        junction = new boolean[n];
+        for (int v = 0; v < n; v++) {
+            junction[v] = !isShapePoint(v, inDegree);
+        }
+        /* A ring of shape points with no junction on it, such as a roundabout that no other
+         * road meets, gets one of its nodes made a junction so that every chain has ends. */
+        boolean[] visited = new boolean[n];
+        for (int pass = 0; pass < 2; pass++) {
+            for (int v = 0; v < n; v++) {
+                if (pass == 1 && !junction[v] && !visited[v]) {
+                    junction[v] = true;
+                }
+                if (junction[v] && (pass == 0 || !visited[v])) {
+                    for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                        for (int prev = v, cur = roads.neighbors[e]; !junction[cur]; ) {
+                            visited[cur] = true;
+                            int next = roads.neighbors[onward(prev, cur)];
+                            prev = cur;
+                            cur = next;
+                        }
+                    }
+                    visited[v] = true;
+                }
+            }
+        }
+
+        int junctions = 0;
+        head = new int[roads.edgeCount()];
+        Arrays.fill(head, -1);
+        linkOffsets = new int[roads.edgeCount() + 1];
+        IntList chainLinks = new IntList();
+        for (int v = 0; v < n; v++) {
+            if (junction[v]) {
+                junctions++;
+            }
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                if (junction[v]) {
+                    int prev = v;
+                    int cur = roads.neighbors[e];
+                    while (!junction[cur]) {
+                        int link = onward(prev, cur);
+                        chainLinks.add(link);
+                        prev = cur;
+                        cur = roads.neighbors[link];
+                    }
+                    head[e] = cur;
+                }
+                linkOffsets[e + 1] = chainLinks.size();
+            }
+        }
+        junctionCount = junctions;
+        links = chainLinks.toArray();
+    }
+
+    /**
+     * A shape point has exactly two neighbors, both distinct from it and each other, that are
+     * also the only two nodes with an edge to it.
+     */
+    private boolean isShapePoint(int v, int[] inDegree) {
+        int e = roads.offsets[v];
+        if (roads.offsets[v + 1] - e != 2 || inDegree[v] != 2) {
+            return false;
+        }
+        int a = roads.neighbors[e];
+        int b = roads.neighbors[e + 1];
+        return a != b && a != v && b != v && roads.edge(a, v) != -1 && roads.edge(b, v) != -1;
+    }
+
+    boolean isJunction(int v) {
+        return junction[v];
+    }
+
+    /** @return The edge a walk arriving from <code>previous</code> leaves shape point v by. */
+    int onward(int previous, int v) {
+        int e = roads.offsets[v];
+        return roads.neighbors[e] == previous ? e + 1 : e;
+    }
+
+    /**
+     * @param edgeWeights Weights of the road edges, indexed like <code>roads.neighbors</code>.
+     * @return The weight of every chain, the sum of its edges' weights, indexed by the edge it
+     * leaves its junction by; 0 for edges that leave shape points.
+     */
+    double[] weights(double[] edgeWeights) {
+        double[] weights = new double[head.length];
+        for (int e = 0; e < head.length; e++) {
+            if (head[e] != -1) {
+                double weight = edgeWeights[e];
+                for (int i = linkOffsets[e]; i < linkOffsets[e + 1]; i++) {
+                    weight += edgeWeights[links[i]];
+                }
+                weights[e] = weight;
+            }
+        }
+        return weights;
+    }
+
+    /** @return How many road nodes are junctions. */
+    int junctionCount() {
+        return junctionCount;
+    }
+
+    /** @return How many chains leave the junctions; a chain and its reverse count twice. */
+    int chainCount() {
+        int chains = 0;
+        for (int e : head) {
+            if (e != -1) {
+                chains++;
+            }
+        }
+        return chains;
+    }
+}
@@ -0,0 +1,555 @@
+import java.util.Arrays;
+
+/**
+ * Contraction Hierarchy over a RoadGraph, for bidirectional shortest-path queries that only
+ * ever search upward in the node order.
+ * <p>
+ * Nodes are ordered by nested dissection and contracted lowest rank first. Contracting a node
+ * joins all of its remaining neighbors to each other; no witness searches are done, so the
+ * shortcut topology does not depend on edge weights. A set of edge weights is applied
+ * afterwards by {@link #customize}, which walks every lower triangle once. Roads are two-way,
+ * so the downward graph is the upward graph read backwards and only the upward arcs are
+ * stored.
+ * </p>
+ * <p>
+ * Because every upward neighbor of a node is also an ancestor of it in the elimination tree
+ * (parent = lowest-ranked upward neighbor), a query only has to relax the ancestors of its
+ * two endpoints, in order, and needs no priority queue.
+ * </p>
+ */
+public class ContractionHierarchy {
+    /** rank[v] is the position of node v in the contraction order. */
+    final int[] rank;
+    /**
+     * Upward arcs of v go to upTargets[upOffsets[v]] .. upTargets[upOffsets[v + 1] - 1],
+     * sorted by node index. An arc's index in upTargets identifies it.
+     */
+    final int[] upOffsets;
+    final int[] upTargets;
+    /** Elimination tree: the lowest-ranked upward neighbor of v, or -1 for a root. */
+    private final int[] parent;
+    /**
+     * Downward arcs, built on first recustomization: the arcs into v from lower nodes are
+     * downArcs[downOffsets[v]] .. downArcs[downOffsets[v + 1] - 1], coming from the matching
+     * downSources, sorted by node index.
+     */
+    private int[] downOffsets;
+    private int[] downSources;
+    private int[] downArcs;
+
+    ContractionHierarchy(int[] rank, int[] upOffsets, int[] upTargets) {
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.parent = new int[rank.length];
+        for (int v = 0; v < rank.length; v++) {
+            parent[v] = -1;
+            for (int a = upOffsets[v]; a < upOffsets[v + 1]; a++) {
+                int w = upTargets[a];
+                if (parent[v] == -1 || rank[w] < rank[parent[v]]) {
+                    parent[v] = w;
+                }
+            }
+        }
+    }
+
+    /**
+     * Contract every node of <code>roads</code>.
+     * @param roads The road graph.
+     * @return The hierarchy, not yet customized.
+     */
+    static ContractionHierarchy build(RoadGraph roads) {
+        int[] rank = dissectionOrder(roads);
+        int n = roads.size();
+        int[] byRank = new int[n];
+        for (int v = 0; v < n; v++) {
+            byRank[rank[v]] = v;
+        }
+
+        /* Eliminate nodes lowest rank first. A node's upward neighbors form a clique once it
+         * is contracted, so it is enough to hand them to the lowest of them, its parent in
+         * the elimination tree; the parent passes them further up in turn. */
+        IntList[] pending = new IntList[n];
+        int[] seen = new int[n];
+        Arrays.fill(seen, -1);
+        int[][] up = new int[n][];
+        IntList collected = new IntList();
+        for (int v : byRank) {
+            collected.clear();
+            seen[v] = v;
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int w = roads.neighbors[e];
+                if (rank[w] > rank[v] && seen[w] != v) {
+                    seen[w] = v;
+                    collected.add(w);
+                }
+            }
+            if (pending[v] != null) {
+                for (int i = 0; i < pending[v].size(); i++) {
+                    int w = pending[v].get(i);
+                    if (seen[w] != v) {
+                        seen[w] = v;
+                        collected.add(w);
+                    }
+                }
+                pending[v] = null;
+            }
+            up[v] = collected.toArray();
+            Arrays.sort(up[v]);
+
+            int parent = -1;
+            for (int w : up[v]) {
+                if (parent == -1 || rank[w] < rank[parent]) {
+                    parent = w;
+                }
+            }
+            if (parent != -1) {
+                if (pending[parent] == null) {
+                    pending[parent] = new IntList();
+                }
+                for (int w : up[v]) {
+                    if (w != parent) {
+                        pending[parent].add(w);
+                    }
+                }
+            }
+        }
+
+        int[] upOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            upOffsets[v + 1] = upOffsets[v] + up[v].length;
+        }
+        int[] upTargets = new int[upOffsets[n]];
+        for (int v = 0; v < n; v++) {
+            System.arraycopy(up[v], 0, upTargets, upOffsets[v], up[v].length);
+        }
+        return new ContractionHierarchy(rank, upOffsets, upTargets);
+    }
+
+    /**
+     * Nested dissection order by geometric bisection. Each part is split in half along one of
+     * a few directions, and the nodes on one side that have a road into the other side form
+     * the separator. The smallest separator found is ranked above both halves, which are then
+     * ordered the same way. Small separators high in the order keep the number of shortcuts
+     * down, since no shortcut ever crosses a separator.
+     * @return rank[v], the position of node v in the contraction order.
+     */
+    private static int[] dissectionOrder(RoadGraph roads) {
+        int n = roads.size();
+        int[] rank = new int[n];
+        int[] part = new int[n];
+        int[] nodes = new int[n];
+        for (int v = 0; v < n; v++) {
+            nodes[v] = v;
+        }
+        double lonScale = Math.cos(Math.toRadians(
+                (MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2));
+        int[] next = {n - 1};
+        int[] nextPart = {1};
+        dissect(roads, nodes, rank, part, next, nextPart, lonScale);
+        return rank;
+    }
+
+    /** Directions tried for each split, as (lon, lat) weights of the projection. */
+    private static final double[][] SPLIT_DIRECTIONS = {{1, 0}, {0, 1}, {1, 1}, {1, -1}};
+
+    private static void dissect(RoadGraph roads, int[] nodes, int[] rank, int[] part,
+                                int[] next, int[] nextPart, double lonScale) {
+        if (nodes.length <= 2) {
+            for (int v : nodes) {
+                rank[v] = next[0]--;
+            }
+            return;
+        }
+        int id = nextPart[0]++;
+        for (int v : nodes) {
+            part[v] = id;
+        }
+
+        int[] bestSeparator = null;
+        int[] bestSide = null;
+        int[] sorted = new int[nodes.length];
+        int half = nodes.length / 2;
+        int sideA = nextPart[0]++;
+        for (double[] direction : SPLIT_DIRECTIONS) {
+            double[] key = new double[nodes.length];
+            Integer[] order = new Integer[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                int v = nodes[i];
+                key[i] = direction[0] * roads.lon[v] * lonScale + direction[1] * roads.lat[v];
+                order[i] = i;
+            }
+            Arrays.sort(order, (x, y) -> Double.compare(key[x], key[y]));
+            for (int i = 0; i < nodes.length; i++) {
+                sorted[i] = nodes[order[i]];
+            }
+            for (int flip = 0; flip < 2; flip++) {
+                /* Side A is sorted[0, half) when flip is 0 and sorted[half, length) when 1. */
+                int from = flip == 0 ? 0 : half;
+                int to = flip == 0 ? half : nodes.length;
+                for (int i = 0; i < nodes.length; i++) {
+                    part[sorted[i]] = i >= from && i < to ? sideA : id;
+                }
+                IntList separator = new IntList();
+                for (int i = from; i < to; i++) {
+                    int v = sorted[i];
+                    for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                        if (part[roads.neighbors[e]] == id) {
+                            separator.add(v);
+                            break;
+                        }
+                    }
+                }
+                if (bestSeparator == null || separator.size() < bestSeparator.length) {
+                    bestSeparator = separator.toArray();
+                    bestSide = Arrays.copyOfRange(sorted, from, to);
+                }
+            }
+        }
+
+        for (int v : nodes) {
+            part[v] = id;
+        }
+        for (int v : bestSeparator) {
+            rank[v] = next[0]--;
+            part[v] = -1;
+        }
+        int[] a = new int[bestSide.length - bestSeparator.length];
+        int[] b = new int[nodes.length - bestSide.length];
+        int aSize = 0;
+        for (int v : bestSide) {
+            if (part[v] != -1) {
+                a[aSize++] = v;
+                part[v] = sideA;
+            }
+        }
+        int bSize = 0;
+        for (int v : nodes) {
+            if (part[v] == id) {
+                b[bSize++] = v;
+            }
+        }
+        dissect(roads, a, rank, part, next, nextPart, lonScale);
+        dissect(roads, b, rank, part, next, nextPart, lonScale);
+    }
+
+    public int size() {
+        return rank.length;
+    }
+
+    public int arcCount() {
+        return upTargets.length;
+    }
+
+    /**
+     * @return The index of the arc joining v and w, or -1 if there is none.
+     */
+    int arc(int v, int w) {
+        int lower = rank[v] < rank[w] ? v : w;
+        int higher = lower == v ? w : v;
+        int i = Arrays.binarySearch(upTargets, upOffsets[lower], upOffsets[lower + 1], higher);
+        return i < 0 ? -1 : i;
+    }
+
+    /**
+     * Edge weights applied to the hierarchy: the weight of every arc, and for shortcuts the
+     * lower node the arc's cheapest path passes through.
+     */
+    static class Metric {
+        final double[] weight;
+        /** middle[a] is the node arc a skips over, or -1 if it is an original road edge. */
+        final int[] middle;
+
+        Metric(double[] weight, int[] middle) {
+            this.weight = weight;
+            this.middle = middle;
+        }
+    }
+
+    /**
+     * Apply edge weights to the hierarchy. Each arc starts at its road edge's weight (infinite
+     * for pure shortcuts), and then every node, lowest rank first, offers the path through
+     * itself to each pair of its upward neighbors.
+     * @param roads The road graph the hierarchy was built from.
+     * @param edgeWeights Weight of each road edge, indexed like <code>roads.neighbors</code>.
+     * @return The customized metric.
+     */
+    Metric customize(RoadGraph roads, double[] edgeWeights) {
+        double[] weight = new double[arcCount()];
+        int[] middle = new int[arcCount()];
+        Arrays.fill(weight, Double.POSITIVE_INFINITY);
+        Arrays.fill(middle, -1);
+        for (int v = 0; v < roads.size(); v++) {
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int w = roads.neighbors[e];
+                if (w != v) {
+                    int a = arc(v, w);
+                    weight[a] = Math.min(weight[a], edgeWeights[e]);
+                }
+            }
+        }
+
+        int[] byRank = new int[size()];
+        for (int v = 0; v < byRank.length; v++) {
+            byRank[rank[v]] = v;
+        }
+        for (int v : byRank) {
+            for (int i = upOffsets[v]; i < upOffsets[v + 1]; i++) {
+                relaxTriangles(v, i, weight, middle);
+            }
+        }
+        return new Metric(weight, middle);
+    }
+
+    /**
+     * Apply changed edge weights to an already customized metric, touching only the arcs
+     * whose weight can depend on the changed edges. The arc of a changed edge is recomputed
+     * from its road edges and its lower triangles. When an arc's weight changes, the arcs it
+     * forms a lower triangle with are recomputed after it, lowest rank first, but only those
+     * it can affect: if it got heavier, the ones whose cheapest path went through it, and if
+     * it got lighter, the ones it now offers a cheaper path to.
+     * @param roads The road graph the hierarchy was built from.
+     * @param edgeWeights The new weight of each road edge, indexed like
+     * <code>roads.neighbors</code>. Both directions of a road must have the same weight.
+     * @param old The metric customized to the weights before the change; left untouched.
+     * @param changedEdges The road edges whose weight changed.
+     * @return The customized metric.
+     */
+    Metric recustomize(RoadGraph roads, double[] edgeWeights, Metric old, int[] changedEdges) {
+        buildDownwardArcs();
+        double[] weight = old.weight.clone();
+        int[] middle = old.middle.clone();
+        IndexMinPQ dirty = new IndexMinPQ(arcCount());
+        for (int e : changedEdges) {
+            int v = roads.source(e);
+            int w = roads.neighbors[e];
+            if (v != w) {
+                int a = arc(v, w);
+                if (!dirty.contains(a)) {
+                    dirty.insert(a, Math.min(rank[v], rank[w]));
+                }
+            }
+        }
+        while (!dirty.isEmpty()) {
+            int a = dirty.delMin();
+            int low = arcSource(a);
+            int high = upTargets[a];
+            double before = weight[a];
+            recomputeArc(roads, edgeWeights, low, high, a, weight, middle);
+            double after = weight[a];
+            if (after == before) {
+                continue;
+            }
+            for (int i = upOffsets[low]; i < upOffsets[low + 1]; i++) {
+                int y = upTargets[i];
+                if (y == high) {
+                    continue;
+                }
+                int b = arc(high, y);
+                boolean affected = after < before ? after + weight[i] < weight[b]
+                        : middle[b] == low;
+                if (affected && !dirty.contains(b)) {
+                    dirty.insert(b, Math.min(rank[high], rank[y]));
+                }
+            }
+        }
+        return new Metric(weight, middle);
+    }
+
+    /** The cheapest of the road edges low - high and the paths low - z - high below both. */
+    private void recomputeArc(RoadGraph roads, double[] edgeWeights, int low, int high, int a,
+                              double[] weight, int[] middle) {
+        double best = Double.POSITIVE_INFINITY;
+        int via = -1;
+        for (int e = roads.offsets[low]; e < roads.offsets[low + 1]; e++) {
+            if (roads.neighbors[e] == high) {
+                best = Math.min(best, edgeWeights[e]);
+            }
+        }
+        int j = downOffsets[low];
+        int k = downOffsets[high];
+        while (j < downOffsets[low + 1] && k < downOffsets[high + 1]) {
+            int y = downSources[j];
+            int z = downSources[k];
+            if (y < z) {
+                j++;
+            } else if (z < y) {
+                k++;
+            } else {
+                double through = weight[downArcs[j]] + weight[downArcs[k]];
+                if (through < best) {
+                    best = through;
+                    via = y;
+                }
+                j++;
+                k++;
+            }
+        }
+        weight[a] = best;
+        middle[a] = via;
+    }
+
+    /** @return The lower node of arc a. */
+    private int arcSource(int a) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (upOffsets[mid] <= a) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    private synchronized void buildDownwardArcs() {
+        if (downArcs != null) {
+            return;
+        }
+        int n = size();
+        int[] offsets = new int[n + 1];
+        for (int a = 0; a < arcCount(); a++) {
+            offsets[upTargets[a] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        int[] sources = new int[arcCount()];
+        int[] arcs = new int[arcCount()];
+        int[] fill = Arrays.copyOf(offsets, n);
+        /* Sources come out sorted because they are visited in index order. */
+        for (int v = 0; v < n; v++) {
+            for (int a = upOffsets[v]; a < upOffsets[v + 1]; a++) {
+                int w = upTargets[a];
+                sources[fill[w]] = v;
+                arcs[fill[w]++] = a;
+            }
+        }
+        downSources = sources;
+        downArcs = arcs;
+        downOffsets = offsets;
+    }
+
+    /**
+     * Offer the paths x - v - y to every arc x - y, where x is the head of arc i out of v and
+     * y is any other upward neighbor of v ranked above x. Both upward lists are sorted by node
+     * index, and x's list contains every such y, so one merge pass finds all the triangles.
+     */
+    private void relaxTriangles(int v, int i, double[] weight, int[] middle) {
+        int x = upTargets[i];
+        int j = upOffsets[v];
+        int k = upOffsets[x];
+        while (j < upOffsets[v + 1] && k < upOffsets[x + 1]) {
+            int y = upTargets[j];
+            int z = upTargets[k];
+            if (y < z) {
+                j++;
+            } else if (z < y) {
+                k++;
+            } else {
+                double through = weight[i] + weight[j];
+                if (through < weight[k]) {
+                    weight[k] = through;
+                    middle[k] = v;
+                }
+                j++;
+                k++;
+            }
+        }
+    }
+
+    /**
+     * Bidirectional upward search between <code>start</code> and <code>end</code>, with
+     * shortcuts unpacked back into road nodes. Each side relaxes the upward arcs of its
+     * endpoint's elimination-tree ancestors, lowest first; the two sides meet at the common
+     * ancestor with the smallest sum of distances.
+     * @param metric Customized weights.
+     * @param forward Scratch state for the search from <code>start</code>.
+     * @param backward Scratch state for the search from <code>end</code>.
+     * @return The shortest route.
+     */
+    Route shortestPath(int start, int end, Metric metric, SearchContext forward,
+                       SearchContext backward) {
+        forward.reset();
+        backward.reset();
+        forward.reach(start, 0, -1);
+        backward.reach(end, 0, -1);
+        relaxAncestors(start, metric, forward);
+        relaxAncestors(end, metric, backward);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        for (int v = start; v != -1; v = parent[v]) {
+            double total = forward.distance(v) + backward.distance(v);
+            if (total < best) {
+                best = total;
+                meet = v;
+            }
+        }
+        int expanded = forward.expanded + backward.expanded;
+        if (meet == -1) {
+            return new Route(new int[0], Double.POSITIVE_INFINITY, expanded);
+        }
+
+        IntList path = new IntList();
+        int[] down = chain(meet, forward);
+        path.add(down[down.length - 1]);
+        for (int i = down.length - 1; i > 0; i--) {
+            unpack(down[i], down[i - 1], metric, path);
+        }
+        for (int v = meet; backward.previous[v] != -1; v = backward.previous[v]) {
+            unpack(v, backward.previous[v], metric, path);
+        }
+        return new Route(path.toArray(), best, expanded);
+    }
+
+    /** Upward search from <code>source</code> over its elimination-tree ancestors. */
+    private void relaxAncestors(int source, Metric metric, SearchContext search) {
+        for (int v = source; v != -1; v = parent[v]) {
+            double d = search.distance(v);
+            if (d == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            search.settle(v);
+            for (int a = upOffsets[v]; a < upOffsets[v + 1]; a++) {
+                int w = upTargets[a];
+                double newDistance = d + metric.weight[a];
+                if (newDistance < search.distance(w)) {
+                    search.reach(w, newDistance, v);
+                }
+            }
+        }
+    }
+
+    /** @return The parent chain of v in <code>search</code>, v first. */
+    private static int[] chain(int v, SearchContext search) {
+        IntList nodes = new IntList();
+        for (int n = v; n != -1; n = search.previous[n]) {
+            nodes.add(n);
+        }
+        return nodes.toArray();
+    }
+
+    /**
+     * Append the road nodes after <code>from</code> on the arc from <code>from</code> to
+     * <code>to</code>, ending with <code>to</code>.
+     */
+    private void unpack(int from, int to, Metric metric, IntList path) {
+        IntList stack = new IntList();
+        stack.add(to);
+        int at = from;
+        while (stack.size() > 0) {
+            int next = stack.get(stack.size() - 1);
+            int mid = metric.middle[arc(at, next)];
+            if (mid == -1) {
+                path.add(next);
+                at = next;
+                stack.removeLast();
+            } else {
+                stack.add(mid);
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+/**
+ * What a route minimizes. Every metric has its edge weights precomputed by RoadGraph, and a
+ * straight-line lower bound that the A* searches use as their heuristic.
+ */
+public enum EdgeMetric {
+    /** Straight-line distance in (lon, lat) degrees, as routes have always been measured. */
+    DEGREES,
+    /** Geodesic length in meters. */
+    DISTANCE,
+    /** Travel time in seconds, at the speed of each edge's highway type. */
+    TIME;
+
+    /**
+     * @param value A request's metric parameter: "degrees", "distance" or "time".
+     * @return The metric, or DEGREES if <code>value</code> is null.
+     * @throws IllegalArgumentException If <code>value</code> is not a metric.
+     */
+    static EdgeMetric parse(String value) {
+        return value == null ? DEGREES : valueOf(value.toUpperCase());
+    }
+}
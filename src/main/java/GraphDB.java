@@ -3,11 +3,13 @@ import org.xml.sax.SAXException;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.HashMap;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Wraps the parsing functionality of the MapDBHandler as an example.
@@ -16,27 +18,61 @@ import java.util.HashSet;
  */
 public class GraphDB {
 
-    static HashMap<String, Node> graph = new HashMap<>();
+    /** Parse-time table of every OSM node; released once the road graph has been built. */
+    HashMap<Long, Node> graph = new HashMap<>();
+    /** The cleaned road graph that routing and route drawing run on. */
+    RoadGraph roads;
+    /** Nearest-node lookups over <code>roads</code>. */
+    SpatialIndex index;
+    /** The junctions and chains of shape points of <code>roads</code>, shared by routers. */
+    ChainGraph chains;
     Node curr;
     ArrayList<Node> connector = new ArrayList();
-    boolean connect = false;
+    /** Road type of the way being parsed, or null if it is not a road. */
+    Highway highway;
     Trie trie;
     HashMap<String, String> lowerToNormalCase;
-    HashMap<String, ArrayList<String>> getID;
-    HashMap<String, Node> stringToNode;
-
+    HashMap<String, ArrayList<Long>> getID;
+    HashMap<Long, Node> stringToNode;
+    /** Every addLocation call in order, so the snapshot can replay them. */
+    ArrayList<Node> namedNodes;
+    ArrayList<String> rawNames;
+    /** Where the graph came from, to stamp files derived from it. */
+    private final String dbPath;
+    private long sourceLength;
+    private long checksum = -1;
+    private ContractionHierarchy hierarchy;
+    /**
+     * ALT landmark tables by the metric they were built for, as stored in the landmarks file;
+     * null until first asked for.
+     */
+    private EnumMap<EdgeMetric, Landmarks> landmarks;
 
     /**
-     * Example constructor shows how to create and start an XML parser.
+     * Loads the graph from the binary snapshot next to <code>dbPath</code> when it was built
+     * from the current contents of that file. Otherwise parses the XML file and writes a fresh
+     * snapshot for the next start.
      * @param dbPath Path to the XML file to be parsed.
      */
     public GraphDB(String dbPath) {
-        trie = new Trie();
-        lowerToNormalCase = new HashMap<>();
-        getID = new HashMap<>();
-        stringToNode = new HashMap<>();
+        this.dbPath = dbPath;
+        File inputFile = new File(dbPath);
+        File snapshotFile = new File(dbPath + GraphSnapshot.EXTENSION);
+        try {
+            sourceLength = inputFile.length();
+            checksum = GraphSnapshot.checksum(inputFile);
+            reset();
+            if (GraphSnapshot.read(this, snapshotFile, sourceLength, checksum)) {
+                release();
+                prepare();
+                return;
+            }
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+
+        reset();
         try {
-            File inputFile = new File(dbPath);
             SAXParserFactory factory = SAXParserFactory.newInstance();
             SAXParser saxParser = factory.newSAXParser();
             MapDBHandler maphandler = new MapDBHandler(this);
@@ -45,6 +81,134 @@ public class GraphDB {
             e.printStackTrace();
         }
         clean();
+        roads = RoadGraph.build(graph.values());
+        release();
+        prepare();
+        if (checksum != -1) {
+            try {
+                GraphSnapshot.write(this, snapshotFile, sourceLength, checksum);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Build the lookup structures derived from <code>roads</code>. These are cheap next to
+     * loading the graph, so they are rebuilt on every start rather than stored in the snapshot.
+     */
+    private void prepare() {
+        index = new SpatialIndex(roads);
+        chains = new ChainGraph(roads);
+    }
+
+    /**
+     * @return The contraction hierarchy of <code>roads</code>. It is read from the file next
+     * to the snapshot if that was built from the same OSM file, and otherwise built now and
+     * written there for the next start.
+     */
+    synchronized ContractionHierarchy hierarchy() {
+        if (hierarchy != null) {
+            return hierarchy;
+        }
+        File file = new File(dbPath + GraphSnapshot.HIERARCHY_EXTENSION);
+        if (checksum != -1) {
+            try {
+                hierarchy = GraphSnapshot.readHierarchy(file, sourceLength, checksum,
+                        roads.size());
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (hierarchy == null) {
+            hierarchy = ContractionHierarchy.build(roads);
+            if (checksum != -1) {
+                try {
+                    GraphSnapshot.writeHierarchy(hierarchy, file, sourceLength, checksum);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return hierarchy;
+    }
+
+    /**
+     * @return Landmarks for the ALT heuristic under each of <code>metrics</code>: the ones in
+     * the file next to the snapshot if they were picked the same way and built from the same
+     * OSM file, and otherwise new ones. The file is rewritten once, with every metric's
+     * tables, if any had to be built.
+     * @param metrics The edge weights to measure landmark distances in.
+     * @param count How many landmarks to pick.
+     * @param strategy How to pick them.
+     */
+    synchronized EnumMap<EdgeMetric, Landmarks> landmarks(Set<EdgeMetric> metrics, int count,
+                                                          Landmarks.Strategy strategy) {
+        File file = new File(dbPath + GraphSnapshot.LANDMARKS_EXTENSION);
+        if (landmarks == null && checksum != -1) {
+            try {
+                landmarks = GraphSnapshot.readLandmarks(file, sourceLength, checksum,
+                        roads.size());
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        if (landmarks == null) {
+            landmarks = new EnumMap<>(EdgeMetric.class);
+        }
+        EnumMap<EdgeMetric, Landmarks> result = new EnumMap<>(EdgeMetric.class);
+        boolean built = false;
+        for (EdgeMetric metric : metrics) {
+            Landmarks stored = landmarks.get(metric);
+            if (stored == null || stored.strategy != strategy || stored.count() != count) {
+                stored = Landmarks.build(roads, roads.weights(metric), count, strategy);
+                landmarks.put(metric, stored);
+                built = true;
+            }
+            result.put(metric, stored);
+        }
+        if (built && checksum != -1) {
+            try {
+                GraphSnapshot.writeLandmarks(landmarks, roads.size(), file, sourceLength,
+                        checksum);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return result;
+    }
+
+    private void reset() {
+        trie = new Trie();
+        lowerToNormalCase = new HashMap<>();
+        getID = new HashMap<>();
+        stringToNode = new HashMap<>();
+        namedNodes = new ArrayList<>();
+        rawNames = new ArrayList<>();
+    }
+
+    /**
+     * Record that <code>node</code> carries the location name <code>name</code>, making it
+     * searchable by prefix and by full name.
+     * @param node The named node.
+     * @param name The name as it appears in the OSM file.
+     */
+    void addLocation(Node node, String name) {
+        node.name = cleanString(name);
+        lowerToNormalCase.put(node.name, name);
+        long id = node.id;
+        trie.put(node.name, id);
+        stringToNode.put(id, node);
+
+        if (!getID.containsKey(name)) {
+            ArrayList<Long> container = new ArrayList<>();
+            container.add(id);
+            getID.put(name, container);
+        } else {
+            getID.get(name).add(id);
+        }
+        namedNodes.add(node);
+        rawNames.add(name);
     }
 
     /**
@@ -58,8 +222,9 @@ public class GraphDB {
 
     /**
      *  Remove nodes with no connections from the graph.
-     *  While this does not guarantee that any two nodes in the remaining graph are connected,
-     *  we can reasonably assume this since typically roads are connected.
+     *  This does not make the remaining graph connected: an extract has islands such as
+     *  parking lots and paths whose ways reach no street. RoadGraph labels the connected
+     *  components, so that routes between them fail at once.
      */
     private void clean() {
         HashSet<Node> nodesToDelete = new HashSet<>();
@@ -78,4 +243,18 @@ public class GraphDB {
         }
 
     }
+
+    /**
+     * Drop the per-node objects of the road graph now that <code>roads</code> holds it. Named
+     * nodes stay reachable through <code>stringToNode</code>, so their connections are cut to
+     * keep them from pinning the rest of the parsed graph in memory.
+     */
+    private void release() {
+        for (Node node : graph.values()) {
+            node.connection.clear();
+        }
+        graph = null;
+        connector = null;
+        curr = null;
+    }
 }
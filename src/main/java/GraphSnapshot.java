@@ -0,0 +1,298 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary snapshot of a parsed GraphDB, so that later starts can skip the SAX parse
+ * of the OSM file. The snapshot is stamped with the CRC32 of the OSM file it was built from
+ * and is only used while that checksum still matches.
+ * <p>
+ * Layout (big-endian): magic, version, source length, source checksum, then the road graph
+ * arrays, then every named location in parse order. Named locations are replayed through
+ * GraphDB.addLocation on load, which rebuilds the trie, lowerToNormalCase and getID exactly
+ * as the parser would.
+ * </p>
+ * <p>
+ * A contraction hierarchy and the ALT landmark tables, when they are used, are each kept in
+ * their own file beside the snapshot with the same header, since they refer to road graph
+ * indices. They are written when they are first built, without rewriting the snapshot.
+ * </p>
+ */
+public class GraphSnapshot {
+    /** Snapshot file name suffix, appended to the OSM file path. */
+    static final String EXTENSION = ".snapshot";
+    /** Contraction hierarchy file name suffix, appended to the OSM file path. */
+    static final String HIERARCHY_EXTENSION = ".ch";
+    /** Landmark tables file name suffix, appended to the OSM file path. */
+    static final String LANDMARKS_EXTENSION = ".alt";
+    private static final int MAGIC = 0x424d4150;
+    private static final int HIERARCHY_MAGIC = 0x424d4348;
+    private static final int LANDMARKS_MAGIC = 0x424d414c;
+    /**
+     * Bump whenever the layout below or the road node order changes; older snapshots are then
+     * rebuilt.
+     */
+    private static final int VERSION = 6;
+
+    /**
+     * @param source The OSM file.
+     * @return The CRC32 of the file's contents.
+     */
+    static long checksum(File source) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = new FileInputStream(source)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Fill <code>g</code> from the snapshot file, if there is one matching the source.
+     * @param g An empty GraphDB.
+     * @param file The snapshot file.
+     * @param sourceLength Length of the OSM file the snapshot must have been built from.
+     * @param checksum Checksum of the OSM file the snapshot must have been built from.
+     * @return Whether the snapshot was loaded. If it is missing or stale, <code>g</code> is
+     * left untouched.
+     */
+    static boolean read(GraphDB g, File file, long sourceLength, long checksum)
+            throws IOException {
+        if (!file.isFile()) {
+            return false;
+        }
+        ByteBuffer buffer = map(file, MAGIC, sourceLength, checksum);
+        if (buffer == null) {
+            return false;
+        }
+
+        int size = buffer.getInt();
+        int edges = buffer.getInt();
+        long[] ids = new long[size];
+        double[] lat = new double[size];
+        double[] lon = new double[size];
+        int[] offsets = new int[size + 1];
+        int[] neighbors = new int[edges];
+        byte[] highway = new byte[edges];
+        buffer.asLongBuffer().get(ids);
+        buffer.position(buffer.position() + size * Long.BYTES);
+        buffer.asDoubleBuffer().get(lat);
+        buffer.position(buffer.position() + size * Double.BYTES);
+        buffer.asDoubleBuffer().get(lon);
+        buffer.position(buffer.position() + size * Double.BYTES);
+        getInts(buffer, offsets);
+        getInts(buffer, neighbors);
+        buffer.get(highway);
+
+        int locations = buffer.getInt();
+        for (int i = 0; i < locations; i++) {
+            long id = buffer.getLong();
+            double nodeLat = buffer.getDouble();
+            double nodeLon = buffer.getDouble();
+            String name = getString(buffer);
+            Node node = g.stringToNode.get(id);
+            if (node == null) {
+                node = new Node(id, nodeLat, nodeLon);
+            }
+            g.addLocation(node, name);
+        }
+
+        g.roads = new RoadGraph(ids, lat, lon, offsets, neighbors, highway);
+        return true;
+    }
+
+    /**
+     * Write <code>g</code> to the snapshot file. The file is replaced atomically, so a crash
+     * part way through never leaves a truncated snapshot behind.
+     * @param g A fully loaded GraphDB.
+     * @param file The snapshot file.
+     * @param sourceLength Length of the OSM file <code>g</code> was parsed from.
+     * @param checksum Checksum of the OSM file <code>g</code> was parsed from.
+     */
+    static void write(GraphDB g, File file, long sourceLength, long checksum)
+            throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = create(temp, MAGIC, sourceLength, checksum)) {
+            RoadGraph roads = g.roads;
+            out.writeInt(roads.size());
+            out.writeInt(roads.edgeCount());
+            for (long id : roads.ids) {
+                out.writeLong(id);
+            }
+            for (double d : roads.lat) {
+                out.writeDouble(d);
+            }
+            for (double d : roads.lon) {
+                out.writeDouble(d);
+            }
+            putInts(out, roads.offsets);
+            putInts(out, roads.neighbors);
+            out.write(roads.highway);
+
+            out.writeInt(g.namedNodes.size());
+            for (int i = 0; i < g.namedNodes.size(); i++) {
+                Node node = g.namedNodes.get(i);
+                out.writeLong(node.id);
+                out.writeDouble(node.lat);
+                out.writeDouble(node.lon);
+                putString(out, g.rawNames.get(i));
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read a contraction hierarchy for a graph of <code>size</code> nodes.
+     * @return The hierarchy, or null if the file is missing or stale.
+     */
+    static ContractionHierarchy readHierarchy(File file, long sourceLength, long checksum,
+                                              int size) throws IOException {
+        ByteBuffer buffer = map(file, HIERARCHY_MAGIC, sourceLength, checksum);
+        if (buffer == null || buffer.getInt() != size) {
+            return null;
+        }
+        int arcs = buffer.getInt();
+        int[] rank = new int[size];
+        int[] upOffsets = new int[size + 1];
+        int[] upTargets = new int[arcs];
+        getInts(buffer, rank);
+        getInts(buffer, upOffsets);
+        getInts(buffer, upTargets);
+        return new ContractionHierarchy(rank, upOffsets, upTargets);
+    }
+
+    static void writeHierarchy(ContractionHierarchy ch, File file, long sourceLength,
+                               long checksum) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = create(temp, HIERARCHY_MAGIC, sourceLength, checksum)) {
+            out.writeInt(ch.size());
+            out.writeInt(ch.arcCount());
+            putInts(out, ch.rank);
+            putInts(out, ch.upOffsets);
+            putInts(out, ch.upTargets);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the landmark tables for a graph of <code>size</code> nodes.
+     * @return The tables by metric, or null if the file is missing or stale.
+     */
+    static EnumMap<EdgeMetric, Landmarks> readLandmarks(File file, long sourceLength,
+                                                        long checksum, int size)
+            throws IOException {
+        ByteBuffer buffer = map(file, LANDMARKS_MAGIC, sourceLength, checksum);
+        if (buffer == null || buffer.getInt() != size) {
+            return null;
+        }
+        EnumMap<EdgeMetric, Landmarks> tables = new EnumMap<>(EdgeMetric.class);
+        int count = buffer.getInt();
+        for (int t = 0; t < count; t++) {
+            EdgeMetric metric = EdgeMetric.values()[buffer.getInt()];
+            Landmarks.Strategy strategy = Landmarks.Strategy.values()[buffer.getInt()];
+            int[] nodes = new int[buffer.getInt()];
+            float[] distances = new float[size * nodes.length];
+            getInts(buffer, nodes);
+            buffer.asFloatBuffer().get(distances);
+            buffer.position(buffer.position() + distances.length * Float.BYTES);
+            tables.put(metric, new Landmarks(strategy, nodes, distances));
+        }
+        return tables;
+    }
+
+    /** Write the landmark tables of every metric at once, over a graph of size nodes. */
+    static void writeLandmarks(Map<EdgeMetric, Landmarks> tables, int size, File file,
+                               long sourceLength, long checksum) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = create(temp, LANDMARKS_MAGIC, sourceLength, checksum)) {
+            out.writeInt(size);
+            out.writeInt(tables.size());
+            for (Map.Entry<EdgeMetric, Landmarks> table : tables.entrySet()) {
+                Landmarks landmarks = table.getValue();
+                out.writeInt(table.getKey().ordinal());
+                out.writeInt(landmarks.strategy.ordinal());
+                out.writeInt(landmarks.count());
+                putInts(out, landmarks.nodes);
+                for (float d : landmarks.distances) {
+                    out.writeFloat(d);
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Map <code>file</code> and check its header.
+     * @return The buffer, positioned after the header, or null if the file is missing or its
+     * header does not match.
+     */
+    private static ByteBuffer map(File file, int magic, long sourceLength, long checksum)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.remaining() < 24 || buffer.getInt() != magic || buffer.getInt() != VERSION
+                || buffer.getLong() != sourceLength || buffer.getLong() != checksum) {
+            return null;
+        }
+        return buffer;
+    }
+
+    private static DataOutputStream create(File file, int magic, long sourceLength,
+                                           long checksum) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file), 1 << 16));
+        out.writeInt(magic);
+        out.writeInt(VERSION);
+        out.writeLong(sourceLength);
+        out.writeLong(checksum);
+        return out;
+    }
+
+    private static void getInts(ByteBuffer buffer, int[] into) {
+        buffer.asIntBuffer().get(into);
+        buffer.position(buffer.position() + into.length * Integer.BYTES);
+    }
+
+    private static void putInts(DataOutputStream out, int[] ints) throws IOException {
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+    }
+
+    private static void putString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.Locale;
+
+/**
+ * The OSM highway types that count as roads, each with the speed used for travel-time
+ * routing. Only non-service roads are allowed; this prevents going on pedestrian streets as
+ * much as possible. Note that in Berkeley, many of the campus roads are tagged as motor
+ * vehicle roads, but in practice we walk all over them with such impunity that we forget cars
+ * can actually drive on them.
+ * See <a href="http://wiki.openstreetmap.org/wiki/Key:highway">the highway tag</a>.
+ */
+public enum Highway {
+    MOTORWAY(100),
+    TRUNK(80),
+    PRIMARY(60),
+    SECONDARY(50),
+    TERTIARY(40),
+    UNCLASSIFIED(30),
+    RESIDENTIAL(25),
+    LIVING_STREET(10),
+    MOTORWAY_LINK(60),
+    TRUNK_LINK(50),
+    PRIMARY_LINK(40),
+    SECONDARY_LINK(35),
+    TERTIARY_LINK(30);
+
+    /** The fastest speed of any road type, in meters per second. */
+    static final double MAX_SPEED = maxSpeed();
+    private static final Highway[] VALUES = values();
+
+    /** Typical speed, in meters per second. */
+    final double speed;
+    /** The OSM tag value, as the type is spelled in the data: lower case. */
+    final String tag;
+
+    Highway(double kmPerHour) {
+        this.speed = kmPerHour / 3.6;
+        this.tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return The type for the OSM tag value, or null if it is not an allowed road type. The
+     * match is exact, as OSM tag values are case sensitive; "Residential" is not a road.
+     */
+    static Highway parse(String value) {
+        for (Highway h : VALUES) {
+            if (h.tag.equals(value)) {
+                return h;
+            }
+        }
+        return null;
+    }
+
+    /** @return The type with the given ordinal, as stored in the snapshot. */
+    static Highway of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    /** @return The faster of two types; used when two ways share a segment. */
+    static Highway faster(Highway a, Highway b) {
+        return a.speed >= b.speed ? a : b;
+    }
+
+    private static double maxSpeed() {
+        double max = 0;
+        for (Highway h : values()) {
+            max = Math.max(max, h.speed);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,138 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/**
+ * Binary min-heap of int indices in [0, capacity) keyed by doubles, with O(log n) insert,
+ * delete-min and decrease-key. Everything lives in three preallocated arrays, so pushing and
+ * popping never allocate.
+ */
+public class IndexMinPQ {
+    /** heap[1 .. size] holds the indices, in heap order. */
+    private final int[] heap;
+    /** position[i] is where index i sits in heap, or 0 if it is not queued. */
+    private final int[] position;
+    private final double[] keys;
+    private int size;
+
+    public IndexMinPQ(int capacity) {
+        heap = new int[capacity + 1];
+        position = new int[capacity];
+        keys = new double[capacity];
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int i) {
+        return position[i] != 0;
+    }
+
+    /** @return The key of index <code>i</code>, which must be queued. */
+    public double keyOf(int i) {
+        return keys[i];
+    }
+
+    /** @return The smallest key in the queue, which must not be empty. */
+    public double minKey() {
+        if (size == 0) {
+            throw new NoSuchElementException("Priority queue is empty.");
+        }
+        return keys[heap[1]];
+    }
+
+    /** @return The index with the smallest key, without removing it. */
+    public int min() {
+        if (size == 0) {
+            throw new NoSuchElementException("Priority queue is empty.");
+        }
+        return heap[1];
+    }
+
+    public void insert(int i, double key) {
+        if (contains(i)) {
+            throw new IllegalArgumentException("Index " + i + " is already queued.");
+        }
+        size++;
+        heap[size] = i;
+        position[i] = size;
+        keys[i] = key;
+        swim(size);
+    }
+
+    /** Lower the key of queued index <code>i</code> to <code>key</code>. */
+    public void decreaseKey(int i, double key) {
+        if (!(key <= keys[i])) {
+            throw new IllegalArgumentException("Key " + key + " is not lower than " + keys[i]);
+        }
+        keys[i] = key;
+        swim(position[i]);
+    }
+
+    /** Insert <code>i</code>, or lower its key if it is already queued with a higher one. */
+    public void insertOrDecrease(int i, double key) {
+        if (!contains(i)) {
+            insert(i, key);
+        } else if (key < keys[i]) {
+            decreaseKey(i, key);
+        }
+    }
+
+    /** Remove and return the index with the smallest key. */
+    public int delMin() {
+        int min = min();
+        exchange(1, size);
+        size--;
+        sink(1);
+        position[min] = 0;
+        return min;
+    }
+
+    /** Empty the queue, in time proportional to its current size. */
+    public void clear() {
+        for (int k = 1; k <= size; k++) {
+            position[heap[k]] = 0;
+        }
+        size = 0;
+    }
+
+    private void swim(int k) {
+        while (k > 1 && keys[heap[k / 2]] > keys[heap[k]]) {
+            exchange(k, k / 2);
+            k = k / 2;
+        }
+    }
+
+    private void sink(int k) {
+        while (2 * k <= size) {
+            int j = 2 * k;
+            if (j < size && keys[heap[j + 1]] < keys[heap[j]]) {
+                j++;
+            }
+            if (!(keys[heap[j]] < keys[heap[k]])) {
+                break;
+            }
+            exchange(k, j);
+            k = j;
+        }
+    }
+
+    private void exchange(int i, int j) {
+        int swap = heap[i];
+        heap[i] = heap[j];
+        heap[j] = swap;
+        position[heap[i]] = i;
+        position[heap[j]] = j;
+    }
+
+    @Override
+    public String toString() {
+        return "IndexMinPQ" + Arrays.toString(Arrays.copyOfRange(heap, 1, size + 1));
+    }
+
+    /* Structure follows IndexMinPQ.java from Princeton's algs4. */
+}
@@ -0,0 +1,43 @@
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, for building index arrays without boxing.
+ */
+public class IntList {
+    private int[] items;
+    private int size;
+
+    public IntList() {
+        items = new int[16];
+    }
+
+    public void add(int x) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, 2 * size);
+        }
+        items[size++] = x;
+    }
+
+    public int get(int i) {
+        if (i >= size) {
+            throw new IndexOutOfBoundsException("Index " + i + " of " + size);
+        }
+        return items[i];
+    }
+
+    public int removeLast() {
+        return items[--size];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public int[] toArray() {
+        return Arrays.copyOf(items, size);
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+/**
+ * The road nodes within some distance of a source node, as found by Router.reachable.
+ */
+public class Isochrone {
+    private final RoadGraph roads;
+    final int source;
+    /** Reached node indices, nearest first. */
+    final int[] nodes;
+    /** Road distance from the source to each of <code>nodes</code>. */
+    final double[] distances;
+
+    Isochrone(RoadGraph roads, int source, int[] nodes, double[] distances) {
+        this.roads = roads;
+        this.source = source;
+        this.nodes = nodes;
+        this.distances = distances;
+    }
+
+    /**
+     * Outline of the reached area as a polygon that is star-shaped around the source: the
+     * farthest reached node, in (lon, lat) degrees, of each of <code>sectors</code> equal
+     * angular sectors around it. Unlike a convex hull it follows the area inwards where roads
+     * do not reach, such as along the bay or up the hills.
+     * @return Vertices as {lat, lon}, counter-clockwise; sectors with no reached node are
+     * left out.
+     */
+    double[][] hull(int sectors) {
+        int[] farthest = new int[sectors];
+        double[] farthestDistance = new double[sectors];
+        Arrays.fill(farthest, -1);
+        double originLon = roads.lon[source];
+        double originLat = roads.lat[source];
+        for (int v : nodes) {
+            double dLon = roads.lon[v] - originLon;
+            double dLat = roads.lat[v] - originLat;
+            if (dLon == 0 && dLat == 0) {
+                continue;
+            }
+            double angle = Math.atan2(dLat, dLon) + Math.PI;
+            int sector = Math.min(sectors - 1, (int) (angle / (2 * Math.PI) * sectors));
+            double d = dLon * dLon + dLat * dLat;
+            if (farthest[sector] == -1 || d > farthestDistance[sector]) {
+                farthest[sector] = v;
+                farthestDistance[sector] = d;
+            }
+        }
+        IntList vertices = new IntList();
+        for (int v : farthest) {
+            if (v != -1) {
+                vertices.add(v);
+            }
+        }
+        double[][] polygon = new double[vertices.size()][];
+        for (int i = 0; i < polygon.length; i++) {
+            int v = vertices.get(i);
+            polygon[i] = new double[]{roads.lat[v], roads.lon[v]};
+        }
+        return polygon;
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Landmark distance tables for the ALT lower bound. For every landmark l and nodes v, t the
+ * triangle inequality gives dist(v, t) >= |dist(l, t) - dist(l, v)|, which is usually a much
+ * tighter A* heuristic than the straight-line distance.
+ * <p>
+ * Distances are kept as floats, node-major, so the bounds for one node are read from one
+ * stretch of memory. Float rounding could push a bound past the true distance, so bounds are
+ * lowered by the largest rounding error a table entry can have.
+ * </p>
+ */
+public class Landmarks {
+    /** How landmarks are picked. */
+    enum Strategy {
+        /** Uniformly at random, with a fixed seed. */
+        RANDOM,
+        /** Greedily, each the node farthest by road from the landmarks picked before it. */
+        FARTHEST,
+        /**
+         * The node farthest from the map's centre in each of <code>count</code> equal angular
+         * sectors around it. Empty sectors get no landmark.
+         */
+        PLANAR
+    }
+
+    final Strategy strategy;
+    /** Road graph index of each landmark. */
+    final int[] nodes;
+    /** distances[v * nodes.length + i] is the road distance between landmark i and node v. */
+    final float[] distances;
+    private final double slack;
+
+    Landmarks(Strategy strategy, int[] nodes, float[] distances) {
+        this.strategy = strategy;
+        this.nodes = nodes;
+        this.distances = distances;
+        float max = 0;
+        for (float d : distances) {
+            if (d != Float.POSITIVE_INFINITY) {
+                max = Math.max(max, d);
+            }
+        }
+        this.slack = 2 * Math.ulp(max);
+    }
+
+    /** @return The number of landmarks. */
+    int count() {
+        return nodes.length;
+    }
+
+    /**
+     * @return A lower bound on the road distance between <code>v</code> and <code>t</code>.
+     * Landmarks that cannot reach both nodes are ignored.
+     */
+    double lowerBound(int v, int t) {
+        int count = nodes.length;
+        int fromV = v * count;
+        int fromT = t * count;
+        double best = 0;
+        for (int i = 0; i < count; i++) {
+            float dv = distances[fromV + i];
+            float dt = distances[fromT + i];
+            if (dv != Float.POSITIVE_INFINITY && dt != Float.POSITIVE_INFINITY) {
+                best = Math.max(best, Math.abs((double) dt - dv));
+            }
+        }
+        return Math.max(0, best - slack);
+    }
+
+    /**
+     * Pick landmarks and run a Dijkstra search from each of them. Landmarks are all taken
+     * from the component of the node nearest the map's centre, so that small disconnected
+     * pieces of road do not use them up.
+     * @param roads The road graph.
+     * @param edgeWeights Length of every edge, indexed like <code>roads.neighbors</code>.
+     * @param count How many landmarks to pick; fewer are picked if the component is smaller.
+     * @param strategy How to pick them.
+     */
+    static Landmarks build(RoadGraph roads, double[] edgeWeights, int count,
+                           Strategy strategy) {
+        int n = roads.size();
+        if (n == 0 || count <= 0) {
+            return new Landmarks(strategy, new int[0], new float[0]);
+        }
+        int centre = centre(roads);
+        IndexMinPQ queue = new IndexMinPQ(n);
+        double[] fromCentre = distancesFrom(roads, edgeWeights, centre, queue);
+        int[] component = reachable(fromCentre);
+        count = Math.min(count, component.length);
+
+        IntList picked = new IntList();
+        double[][] tables = new double[count][];
+        if (strategy == Strategy.RANDOM) {
+            Random random = new Random(0);
+            int[] shuffled = component.clone();
+            for (int i = 0; i < count; i++) {
+                int j = i + random.nextInt(shuffled.length - i);
+                int swap = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swap;
+                picked.add(shuffled[i]);
+            }
+        } else if (strategy == Strategy.PLANAR) {
+            for (int node : planar(roads, component, centre, count)) {
+                picked.add(node);
+            }
+        } else {
+            double[] nearest = fromCentre.clone();
+            for (int i = 0; i < count; i++) {
+                int farthest = -1;
+                for (int v : component) {
+                    if (farthest == -1 || nearest[v] > nearest[farthest]) {
+                        farthest = v;
+                    }
+                }
+                picked.add(farthest);
+                tables[i] = distancesFrom(roads, edgeWeights, farthest, queue);
+                for (int v : component) {
+                    nearest[v] = Math.min(nearest[v], tables[i][v]);
+                }
+            }
+        }
+
+        int[] nodes = picked.toArray();
+        float[] distances = new float[n * nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            double[] table = tables[i] != null ? tables[i]
+                    : distancesFrom(roads, edgeWeights, nodes[i], queue);
+            for (int v = 0; v < n; v++) {
+                distances[v * nodes.length + i] = (float) table[v];
+            }
+        }
+        return new Landmarks(strategy, nodes, distances);
+    }
+
+    /** @return The node nearest the mean of all node coordinates. */
+    private static int centre(RoadGraph roads) {
+        double lon = 0;
+        double lat = 0;
+        for (int v = 0; v < roads.size(); v++) {
+            lon += roads.lon[v];
+            lat += roads.lat[v];
+        }
+        lon /= roads.size();
+        lat /= roads.size();
+        int best = 0;
+        double min = Double.POSITIVE_INFINITY;
+        for (int v = 0; v < roads.size(); v++) {
+            double dLon = roads.lon[v] - lon;
+            double dLat = roads.lat[v] - lat;
+            if (dLon * dLon + dLat * dLat < min) {
+                min = dLon * dLon + dLat * dLat;
+                best = v;
+            }
+        }
+        return best;
+    }
+
+    private static int[] reachable(double[] distance) {
+        IntList nodes = new IntList();
+        for (int v = 0; v < distance.length; v++) {
+            if (distance[v] != Double.POSITIVE_INFINITY) {
+                nodes.add(v);
+            }
+        }
+        return nodes.toArray();
+    }
+
+    private static int[] planar(RoadGraph roads, int[] component, int centre, int count) {
+        int[] best = new int[count];
+        double[] bestDistance = new double[count];
+        Arrays.fill(best, -1);
+        for (int v : component) {
+            double dLon = roads.lon[v] - roads.lon[centre];
+            double dLat = roads.lat[v] - roads.lat[centre];
+            double angle = Math.atan2(dLat, dLon) + Math.PI;
+            int sector = Math.min(count - 1, (int) (angle / (2 * Math.PI) * count));
+            double d = dLon * dLon + dLat * dLat;
+            if (best[sector] == -1 || d > bestDistance[sector]) {
+                best[sector] = v;
+                bestDistance[sector] = d;
+            }
+        }
+        IntList nodes = new IntList();
+        for (int v : best) {
+            if (v != -1) {
+                nodes.add(v);
+            }
+        }
+        return nodes.toArray();
+    }
+
+    /** @return Dijkstra distances from <code>source</code> to every node, infinity if none. */
+    private static double[] distancesFrom(RoadGraph roads, double[] edgeWeights, int source,
+                                          IndexMinPQ queue) {
+        double[] distance = new double[roads.size()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        distance[source] = 0;
+        queue.clear();
+        queue.insert(source, 0);
+        while (!queue.isEmpty()) {
+            int v = queue.delMin();
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int w = roads.neighbors[e];
+                double d = distance[v] + edgeWeights[e];
+                if (d < distance[w]) {
+                    distance[w] = d;
+                    queue.insertOrDecrease(w, d);
+                }
+            }
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,97 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded LRU map, the store behind the server's caches. It is bounded both in entries and in
+ * an estimate of the bytes its values hold, given by a weigher, and evicts the least recently
+ * used entries until it is under both limits. A value heavier than the whole byte limit is
+ * never stored. All methods are synchronized, so one cache may be shared by every request.
+ * @param <K> The key type.
+ * @param <V> The value type; values are weighed once when stored and once when dropped, so
+ *            their weight must not change in between.
+ */
+public class LruCache<K, V> {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ToLongFunction<? super V> weigher;
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxEntries Most entries to keep.
+     * @param maxBytes Most bytes, by estimate, the kept values may take up.
+     * @param weigher Estimates the bytes an entry with a given value takes up.
+     */
+    public LruCache(int maxEntries, long maxBytes, ToLongFunction<? super V> weigher) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    /**
+     * @return The value cached under <code>key</code>, or null. A hit makes the entry the most
+     * recently used one.
+     */
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+
+    /** Cache <code>value</code> under <code>key</code>, replacing any value already there. */
+    public synchronized void put(K key, V value) {
+        long weight = weigher.applyAsLong(value);
+        if (weight > maxBytes || maxEntries <= 0) {
+            return;
+        }
+        V old = entries.put(key, value);
+        if (old != null) {
+            bytes -= weigher.applyAsLong(old);
+        }
+        bytes += weight;
+        Iterator<Map.Entry<K, V>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= weigher.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    /** Drop the entry for <code>key</code>, if there is one. */
+    public synchronized void remove(K key) {
+        V old = entries.remove(key);
+        if (old != null) {
+            bytes -= weigher.applyAsLong(old);
+        }
+    }
+
+    /** Drop every entry. The hit and miss counts are kept. */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return The estimated bytes held by the cached values. */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+}
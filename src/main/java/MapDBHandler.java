@@ -3,9 +3,6 @@ import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
  *  Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -19,16 +16,6 @@ import java.util.Set;
  *  @author Alan Yao
  */
 public class MapDBHandler extends DefaultHandler {
-    /**
-     * Only allow for non-service roads; this prevents going on pedestrian streets as much as
-     * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
-     * roads, but in practice we walk all over them with such impunity that we forget cars can
-     * actually drive on them.
-     */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
-            ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
-                    "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
     private String activeState = "";
     private final GraphDB g;
 
@@ -58,9 +45,9 @@ public class MapDBHandler extends DefaultHandler {
         if (qName.equals("node")) {
             activeState = "node";
 
-            String id = attributes.getValue("id");
-            String lat = attributes.getValue("lat");
-            String lon = attributes.getValue("lon");
+            long id = Long.parseLong(attributes.getValue("id"));
+            double lat = Double.parseDouble(attributes.getValue("lat"));
+            double lon = Double.parseDouble(attributes.getValue("lon"));
             Node newNode = new Node(id, lat, lon);
             g.curr = newNode;
             g.graph.put(id, newNode);
@@ -69,31 +56,20 @@ public class MapDBHandler extends DefaultHandler {
             activeState = "way";
 //            System.out.println("Beginning a way...");
         } else if (activeState.equals("way") && qName.equals("nd")) {
-            Node nodeToAdd = g.graph.get(attributes.getValue("ref"));
+            Node nodeToAdd = g.graph.get(Long.parseLong(attributes.getValue("ref")));
             g.connector.add(nodeToAdd);
 
         } else if (activeState.equals("way") && qName.equals("tag")) {
             String k = attributes.getValue("k");
             String v = attributes.getValue("v");
-            if (k.equals("highway") && ALLOWED_HIGHWAY_TYPES.contains(v)) {
-                g.connect = true;
+            if (k.equals("highway")) {
+                /* Only the road types listed in Highway are allowed. */
+                g.highway = Highway.parse(v);
             }
 //            System.out.println("Tag with k=" + k + ", v=" + v + ".");
         } else if (activeState.equals("node") && qName.equals("tag") && attributes.getValue("k")
                 .equals("name")) {
-            g.curr.name = g.cleanString(attributes.getValue("v"));
-            g.lowerToNormalCase.put(g.curr.name, attributes.getValue("v"));
-            String id = g.curr.id;
-            g.trie.put(g.curr.name, id);
-            g.stringToNode.put(id, g.curr);
-
-            if (!g.getID.containsKey(attributes.getValue("v"))) {
-                ArrayList<String> container = new ArrayList<>();
-                container.add(id);
-                g.getID.put(attributes.getValue("v"), container);
-            } else {
-                g.getID.get(attributes.getValue("v")).add(id);
-            }
+            g.addLocation(g.curr, attributes.getValue("v"));
         }
 
     }
@@ -112,23 +88,29 @@ public class MapDBHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            if (g.connect) {
+            Highway type = g.highway;
+            if (type != null) {
                 for (int i = 0; i < g.connector.size(); i++) {
                     if (i == 0 && i < g.connector.size() - 1) {
-                        g.connector.get(i).connection.add(g.connector.get(i + 1));
+                        connect(g.connector.get(i), g.connector.get(i + 1), type);
                     } else if (i > 0 && i < g.connector.size() - 1) {
-                        g.connector.get(i).connection.add(g.connector.get(i + 1));
-                        g.connector.get(i).connection.add(g.connector.get(i - 1));
+                        connect(g.connector.get(i), g.connector.get(i + 1), type);
+                        connect(g.connector.get(i), g.connector.get(i - 1), type);
                     } else if (i == g.connector.size() - 1 && i > 0) {
-                        g.connector.get(i).connection.add(g.connector.get(i - 1));
+                        connect(g.connector.get(i), g.connector.get(i - 1), type);
                     }
                 }
             }
-            g.connect = false;
+            g.highway = null;
             g.connector = new ArrayList<Node>();
 //            System.out.println("Finishing a way...");
         }
     }
 
+    /** Add the edge from a to b, keeping the faster type if two ways share it. */
+    private static void connect(Node a, Node b, Highway type) {
+        a.connection.merge(b, type, Highway::faster);
+    }
+
 
 }
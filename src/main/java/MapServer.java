@@ -1,18 +1,27 @@
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.PriorityQueue;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Set;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Base64;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Stroke;
@@ -22,7 +31,6 @@ import java.awt.Graphics2D;
 /* Maven is used to pull in these dependencies. */
 import com.google.gson.Gson;
 
-import javax.imageio.ImageIO;
 
 import static spark.Spark.*;
 
@@ -55,6 +63,66 @@ public class MapServer {
      * using custom region selection.
      **/
     private static final String OSM_DB_PATH = "berkeley.osm";
+    /**
+     * System property choosing the route search: "astar" (the default), "bidirectional" for
+     * A* from both ends, or "ch" for queries on a contraction hierarchy, which is built and
+     * saved beside the OSM file on first use.
+     */
+    static final String ROUTING_PROPERTY = "bearmaps.routing";
+    /**
+     * System property giving the number of ALT landmarks plain A* uses, 16 by default; 0
+     * turns them off. The landmark tables are computed once and kept in a file beside the
+     * graph snapshot.
+     */
+    static final String LANDMARKS_PROPERTY = "bearmaps.landmarks";
+    /**
+     * System property choosing how landmarks are picked: "farthest" (the default), "planar"
+     * or "random". See Landmarks.Strategy.
+     */
+    static final String LANDMARK_STRATEGY_PROPERTY = "bearmaps.landmarks.strategy";
+    /** System property giving how many routes the route cache keeps, 1024 by default. */
+    static final String ROUTE_CACHE_ENTRIES_PROPERTY = "bearmaps.routecache.entries";
+    /** System property giving the route cache's size limit in bytes, 16 MB by default. */
+    static final String ROUTE_CACHE_BYTES_PROPERTY = "bearmaps.routecache.bytes";
+    /** System property giving the decoded tile cache's size limit in MB, 64 by default. */
+    static final String TILE_CACHE_MB_PROPERTY = "bearmaps.tilecache.mb";
+    /**
+     * System property giving how many threads decode and draw the tiles of large rasters, the
+     * number of processors by default.
+     */
+    static final String RASTER_THREADS_PROPERTY = "bearmaps.raster.threads";
+    /**
+     * System property giving the deflate level, -1 to 9, rasters are encoded at, or "fast" for
+     * PngEncoder.FAST_LEVEL. Unset, rasters are encoded by ImageIO's PNG writer, as the staff
+     * test images were; set, by PngEncoder.
+     */
+    static final String PNG_LEVEL_PROPERTY = "bearmaps.png.level";
+    /**
+     * System property naming PngEncoder's scanline filter: none (the default), sub, up,
+     * average, paeth or adaptive.
+     */
+    static final String PNG_FILTER_PROPERTY = "bearmaps.png.filter";
+    /**
+     * System property; "true" has PngEncoder compress each raster in bands on the raster pool,
+     * "false" on its request thread. By default it does when the pool has several threads.
+     */
+    static final String PNG_PARALLEL_PROPERTY = "bearmaps.png.parallel";
+    /** Rasters of at least this many tiles are drawn on the raster pool. */
+    private static final int PARALLEL_RASTER_TILES = 4;
+    /** Most bytes of raster pixel arrays kept for reuse. */
+    private static final long RASTER_BUFFER_BYTES = 64L << 20;
+    /** The color model and masks of TYPE_INT_RGB, for rasters over pooled pixel arrays. */
+    private static final int[] RGB_MASKS = {0xff0000, 0xff00, 0xff};
+    private static final DirectColorModel RGB = new DirectColorModel(24, RGB_MASKS[0],
+            RGB_MASKS[1], RGB_MASKS[2]);
+    /** System property giving how many rendered rasters are cached, 256 by default. */
+    static final String RASTER_CACHE_ENTRIES_PROPERTY = "bearmaps.rastercache.entries";
+    /** System property giving the raster cache's size limit in bytes, 32 MB by default. */
+    static final String RASTER_CACHE_BYTES_PROPERTY = "bearmaps.rastercache.bytes";
+    /** System property giving how many clients' routes are kept, 10000 by default. */
+    static final String SESSIONS_PROPERTY = "bearmaps.sessions.max";
+    /** System property giving how many seconds an idle client route is kept, 3600 by default. */
+    static final String SESSION_TTL_PROPERTY = "bearmaps.sessions.ttl";
     /**
      * Each raster request to the server will have the following parameters
      * as keys in the params map accessible by,
@@ -65,20 +133,67 @@ public class MapServer {
      **/
     private static final String[] REQUIRED_RASTER_REQUEST_PARAMS = {"ullat", "ullon", "lrlat",
         "lrlon", "w", "h"};
+    /**
+     * The raster parameters and the response headers /raster.png sends them in, in the order
+     * getMapRaster() documents them.
+     **/
+    private static final String[][] RASTER_HEADERS = {{"raster_ul_lon", "X-Raster-Ul-Lon"},
+        {"raster_ul_lat", "X-Raster-Ul-Lat"}, {"raster_lr_lon", "X-Raster-Lr-Lon"},
+        {"raster_lr_lat", "X-Raster-Lr-Lat"}, {"raster_width", "X-Raster-Width"},
+        {"raster_height", "X-Raster-Height"}, {"depth", "X-Raster-Depth"}};
+    /** Headers scripts from other origins may read; CORS hides any others. */
+    private static final String EXPOSED_HEADERS = "X-Raster-Ul-Lon, X-Raster-Ul-Lat, "
+            + "X-Raster-Lr-Lon, X-Raster-Lr-Lat, X-Raster-Width, X-Raster-Height, X-Raster-Depth, "
+            + "X-Tile-Cache-Hits, X-Tile-Cache-Misses, X-Tile-Cache-Bytes, X-Raster-Cache-Hits, "
+            + "X-Raster-Cache-Misses, X-Route-Token, X-Nodes-Expanded, X-Route-Distance, "
+            + "X-Route-Cache-Hits, X-Route-Cache-Misses";
     /**
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat -> start point latitude,<br> start_lon -> start point longitude,<br>
-     * end_lat -> end point latitude, <br>end_lon -> end point longitude.
+     * end_lat -> end point latitude, <br>end_lon -> end point longitude.<br>
+     * An optional metric parameter chooses what the route minimizes: "degrees" (the default),
+     * "distance" or "time".
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Each isochrone request has the following parameters.<br>
+     * lat -> origin latitude,<br> lon -> origin longitude,<br>
+     * distance -> how far to search, in the units of the optional metric parameter.<br>
+     * With hull=true in the query, the response is an outline polygon instead of the nodes.
+     **/
+    private static final String[] REQUIRED_ISOCHRONE_REQUEST_PARAMS = {"lat", "lon",
+        "distance"};
+    /** Angular sectors of isochrone outlines. */
+    private static final int ISOCHRONE_HULL_SECTORS = 72;
     /* Define any static variables here. Do not define any instance variables of MapServer. */
     private static GraphDB g;
+    /** A router for each metric. */
+    private static EnumMap<EdgeMetric, Router> routers;
+    /**
+     * Routes by snapped endpoints, a cache for each metric. Replaced along with the graph, so
+     * they never go stale.
+     */
+    private static EnumMap<EdgeMetric, RouteCache> routeCaches;
     static QuadTree root;
-    private static Graphics graphics;
-    private static LinkedList<Long> shortestPath = new LinkedList<>();
-    static HashSet<Node> visitedWithAStar;
+    /** Decoded map tiles, shared by every raster request. */
+    private static TileCache tiles;
+    /** Rendered rasters by tiles, depth and route; shared by every raster request. */
+    private static RasterCache rasters;
+    /** Draws the tiles of large rasters in parallel; shared by every raster request. */
+    private static ForkJoinPool rasterPool;
+    /** Pixel arrays of finished rasters, for the next raster of the same size. */
+    private static PixelBuffers pixelBuffers;
+    /** Encodes every raster that is not cached. */
+    private static RasterEncoder encoder;
+    /**
+     * The current route of the Java API: findAndSetRoute, clearRoute and getMapRaster without
+     * a route. Replaced wholesale, never modified, so readers need no locking.
+     */
+    private static volatile RoutePolyline shortestPath = RoutePolyline.EMPTY;
+    /** The current route of each HTTP client, by route token. */
+    private static RouteSessions sessions;
 
 
     /**
@@ -88,8 +203,50 @@ public class MapServer {
      **/
     public static void initialize() {
         g = new GraphDB(OSM_DB_PATH);
+        routers = new EnumMap<>(EdgeMetric.class);
+        routeCaches = new EnumMap<>(EdgeMetric.class);
+        String routing = System.getProperty(ROUTING_PROPERTY);
+        int count = Integer.getInteger(LANDMARKS_PROPERTY, 16);
+        Landmarks.Strategy strategy = Landmarks.Strategy.valueOf(System.getProperty(
+                LANDMARK_STRATEGY_PROPERTY, "farthest").toUpperCase());
+        EnumMap<EdgeMetric, Landmarks> landmarks = null;
+        if (!"ch".equals(routing) && !"bidirectional".equals(routing) && count > 0) {
+            landmarks = g.landmarks(EnumSet.allOf(EdgeMetric.class), count, strategy);
+        }
+        for (EdgeMetric metric : EdgeMetric.values()) {
+            Router router = new Router(g.roads, g.chains, metric);
+            if ("ch".equals(routing)) {
+                router.useHierarchy(g.hierarchy());
+            } else if ("bidirectional".equals(routing)) {
+                router.setAlgorithm(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+            } else if (landmarks != null) {
+                router.useLandmarks(landmarks.get(metric));
+            }
+            routers.put(metric, router);
+            routeCaches.put(metric, new RouteCache(
+                    Integer.getInteger(ROUTE_CACHE_ENTRIES_PROPERTY, 1024),
+                    Long.getLong(ROUTE_CACHE_BYTES_PROPERTY, 16L << 20)));
+        }
+        sessions = new RouteSessions(Integer.getInteger(SESSIONS_PROPERTY, 10000),
+                Long.getLong(SESSION_TTL_PROPERTY, 3600) * 1000);
         root = new QuadTree(ROOT_ULLON, ROOT_ULLAT, ROOT_LRLON, ROOT_LRLAT, "");
-        visitedWithAStar = new HashSet<>();
+        tiles = new TileCache(IMG_ROOT, Long.getLong(TILE_CACHE_MB_PROPERTY, 64) << 20);
+        rasters = new RasterCache(Integer.getInteger(RASTER_CACHE_ENTRIES_PROPERTY, 256),
+                Long.getLong(RASTER_CACHE_BYTES_PROPERTY, 32L << 20));
+        pixelBuffers = new PixelBuffers(RASTER_BUFFER_BYTES);
+        if (rasterPool == null) {
+            rasterPool = new ForkJoinPool(Integer.getInteger(RASTER_THREADS_PROPERTY,
+                    Runtime.getRuntime().availableProcessors()));
+        }
+        encoder = RasterEncoder.IMAGEIO;
+        String level = System.getProperty(PNG_LEVEL_PROPERTY);
+        if (level != null) {
+            boolean parallel = Boolean.parseBoolean(System.getProperty(PNG_PARALLEL_PROPERTY,
+                    Boolean.toString(rasterPool.getParallelism() > 1)));
+            encoder = new PngEncoder("fast".equals(level) ? PngEncoder.FAST_LEVEL
+                    : Integer.parseInt(level), PngEncoder.Filter.valueOf(System.getProperty(
+                    PNG_FILTER_PROPERTY, "none").toUpperCase()), parallel ? rasterPool : null);
+        }
     }
 
     public static void main(String[] args) {
@@ -101,21 +258,24 @@ public class MapServer {
             response.header("Access-Control-Allow-Origin", "*");
             response.header("Access-Control-Request-Method", "*");
             response.header("Access-Control-Allow-Headers", "*");
+            response.header("Access-Control-Expose-Headers", EXPOSED_HEADERS);
         });
 
         /* Define the raster endpoint for HTTP GET requests. I use anonymous functions to define
-         * the request handlers. */
+         * the request handlers. With simplify=true in the query, the route is drawn simplified
+         * to the raster's depth, on this endpoint and on /raster.png. */
         get("/raster", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
-            /* The png image is written to the ByteArrayOutputStream */
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            /* getMapRaster() does almost all the work for this API call */
-            Map<String, Object> rasteredImgParams = getMapRaster(params, os);
+            /* raster() does almost all the work for this API call */
+            RasterCache.Raster raster = raster(params, sessions.get(routeToken(req)),
+                    simplify(req));
+            Map<String, Object> rasteredImgParams = raster.params();
+            setRasterCacheHeaders(res);
             /* On an image query success, add the image data to the response */
             if (rasteredImgParams.containsKey("query_success")
                     && (Boolean) rasteredImgParams.get("query_success")) {
-                String encodedImage = Base64.getEncoder().encodeToString(os.toByteArray());
+                String encodedImage = Base64.getEncoder().encodeToString(raster.png);
                 rasteredImgParams.put("b64_encoded_image_data", encodedImage);
             }
             /* Encode response to Json */
@@ -123,17 +283,89 @@ public class MapServer {
             return gson.toJson(rasteredImgParams);
         });
 
-        /* Define the routing endpoint for HTTP GET requests. */
+        /* Define the binary raster endpoint: the same query as /raster, answered with the PNG
+         * itself and the raster parameters in RASTER_HEADERS. The PNG is sent straight from
+         * the raster cache, without Base64 or Json. */
+        get("/raster.png", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_RASTER_REQUEST_PARAMS);
+            RasterCache.Raster raster = raster(params, sessions.get(routeToken(req)),
+                    simplify(req));
+            Map<String, Object> rasteredImgParams = raster.params();
+            for (String[] header : RASTER_HEADERS) {
+                res.header(header[1], String.valueOf(rasteredImgParams.get(header[0])));
+            }
+            setRasterCacheHeaders(res);
+            res.type("image/png");
+            return raster.png;
+        });
+
+        /* Define the routing endpoint for HTTP GET requests. The route becomes the current
+         * route of the caller only, who is handed a route token if they have none yet. */
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            LinkedList<Long> route = findAndSetRoute(params);
+            EdgeMetric metric = getMetric(req);
+            Route route = findRoute(params, metric);
+            String token = routeToken(req);
+            if (token == null) {
+                token = RouteSessions.newToken();
+                res.cookie(RouteSessions.TOKEN, token);
+            }
+            sessions.put(token, polyline(route));
+            res.header("X-Route-Token", token);
+            res.header("X-Nodes-Expanded", Integer.toString(route.nodesExpanded));
+            res.header("X-Route-Distance", Double.toString(route.distance));
+            RouteCache routeCache = routeCaches.get(metric);
+            res.header("X-Route-Cache-Hits", Long.toString(routeCache.hits()));
+            res.header("X-Route-Cache-Misses", Long.toString(routeCache.misses()));
             return !route.isEmpty();
         });
 
+        /* Define the distance matrix endpoint. Leaves the current route alone. */
+        get("/route/matrix", (req, res) -> {
+            double[][] sources = getPoints(req, "sources");
+            double[][] targets = getPoints(req, "targets");
+            Map<String, Object> matrix = new HashMap<>();
+            matrix.put("distances", distanceMatrix(sources, targets, getMetric(req)));
+            Gson gson = new Gson();
+            return gson.toJson(matrix);
+        });
+
+        /* Define the reachability endpoint. */
+        get("/isochrone", (req, res) -> {
+            HashMap<String, Double> params =
+                    getRequestParams(req, REQUIRED_ISOCHRONE_REQUEST_PARAMS);
+            Gson gson = new Gson();
+            return gson.toJson(getIsochrone(params, getMetric(req),
+                    Boolean.parseBoolean(req.queryParams("hull"))));
+        });
+
+        /* Define the road overlay endpoint: from and to are the OSM ids of the two ends of a
+         * road segment, and factor scales its weight. factor=Infinity closes the road and
+         * factor=1 restores it. */
+        get("/overlay", (req, res) -> {
+            long from = 0;
+            long to = 0;
+            double factor = 0;
+            try {
+                from = Long.parseLong(req.queryParams("from"));
+                to = Long.parseLong(req.queryParams("to"));
+                factor = Double.parseDouble(req.queryParams("factor"));
+            } catch (NumberFormatException | NullPointerException e) {
+                halt(HALT_RESPONSE, "Incorrect parameters - provide from, to and factor.");
+            }
+            try {
+                setRoadFactor(from, to, factor);
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+            }
+            return true;
+        });
+
         /* Define the API endpoint for clearing the current route. */
         get("/clear_route", (req, res) -> {
-            clearRoute();
+            sessions.remove(routeToken(req));
             return true;
         });
 
@@ -186,6 +418,164 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Slow down or close the road segment between two nodes, for every metric, from the next
+     * search on. Cached routes no longer match the routers' weight generation; they are
+     * dropped too, to free their room at once.
+     * @param from OSM id of one end of the segment.
+     * @param to OSM id of the other end.
+     * @param factor What to scale the segment's weight by: at least 1, infinity to close it.
+     * @throws IllegalArgumentException If the nodes are not joined by a road, or the factor is
+     * below 1.
+     */
+    public static void setRoadFactor(long from, long to, double factor) {
+        int v = g.roads.indexOf(from);
+        int w = g.roads.indexOf(to);
+        if (v == -1 || w == -1) {
+            throw new IllegalArgumentException("Not a road node: " + (v == -1 ? from : to));
+        }
+        synchronized (routers) {
+            for (EdgeMetric metric : EdgeMetric.values()) {
+                routers.get(metric).overlay(new int[]{v}, new int[]{w}, new double[]{factor});
+                routeCaches.get(metric).clear();
+            }
+        }
+    }
+
+    /**
+     * @return The metric named by the request's optional metric parameter: "degrees" (the
+     * default), "distance" in meters or "time" in seconds.
+     */
+    private static EdgeMetric getMetric(spark.Request req) {
+        try {
+            return EdgeMetric.parse(req.queryParams("metric"));
+        } catch (IllegalArgumentException e) {
+            halt(HALT_RESPONSE, "Incorrect parameters - unknown metric.");
+            return null;
+        }
+    }
+
+    /** Report the tile and raster caches' counters in the headers of a raster response. */
+    private static void setRasterCacheHeaders(spark.Response res) {
+        res.header("X-Tile-Cache-Hits", Long.toString(tiles.hits()));
+        res.header("X-Tile-Cache-Misses", Long.toString(tiles.misses()));
+        res.header("X-Tile-Cache-Bytes", Long.toString(tiles.bytes()));
+        res.header("X-Raster-Cache-Hits", Long.toString(rasters.hits()));
+        res.header("X-Raster-Cache-Misses", Long.toString(rasters.misses()));
+    }
+
+    /**
+     * @return The caller's route token, from the request parameter or else the cookie; null
+     * if there is neither.
+     */
+    private static String routeToken(spark.Request req) {
+        String token = req.queryParams(RouteSessions.TOKEN);
+        return token != null ? token : req.cookie(RouteSessions.TOKEN);
+    }
+
+    /** @return Whether the raster request asks for its route drawn simplified. */
+    private static boolean simplify(spark.Request req) {
+        return Boolean.parseBoolean(req.queryParams("simplify"));
+    }
+
+    /**
+     * Parse a list of points given as "lat,lon;lat,lon;...".
+     * @param req HTTP Request
+     * @param param Name of the parameter holding the list.
+     * @return Each point as {lat, lon}.
+     */
+    private static double[][] getPoints(spark.Request req, String param) {
+        String value = req.queryParams(param);
+        if (value == null || value.isEmpty()) {
+            halt(HALT_RESPONSE, "Request failed - parameters missing.");
+        }
+        String[] points = value.split(";");
+        double[][] parsed = new double[points.length][];
+        for (int i = 0; i < points.length; i++) {
+            String[] latLon = points[i].split(",");
+            try {
+                if (latLon.length != 2) {
+                    throw new NumberFormatException(points[i]);
+                }
+                parsed[i] = new double[]{Double.parseDouble(latLon[0].trim()),
+                    Double.parseDouble(latLon[1].trim())};
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                halt(HALT_RESPONSE, "Incorrect parameters - provide lat,lon pairs.");
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * Road distances between every source and every target, each snapped to its nearest road
+     * node as for findAndSetRoute. The current route is not changed.
+     * @param sources Points as {lat, lon}.
+     * @param targets Points as {lat, lon}.
+     * @param metric What the distances measure.
+     * @return distances[i][j] from sources[i] to targets[j], or null where there is no path.
+     */
+    public static Double[][] distanceMatrix(double[][] sources, double[][] targets,
+                                            EdgeMetric metric) {
+        Double[][] result = new Double[sources.length][targets.length];
+        if (g.roads.size() == 0) {
+            return result;
+        }
+        double[][] distances = routers.get(metric).distanceMatrix(snap(sources), snap(targets));
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                double d = distances[i][j];
+                result[i][j] = d == Double.POSITIVE_INFINITY ? null : d;
+            }
+        }
+        return result;
+    }
+
+    private static int[] snap(double[][] points) {
+        int[] nodes = new int[points.length];
+        for (int i = 0; i < points.length; i++) {
+            nodes[i] = g.index.nearest(points[i][1], points[i][0]);
+        }
+        return nodes;
+    }
+
+    /**
+     * Everything within the requested distance of the road node nearest the origin.
+     * @param params from the API call described in REQUIRED_ISOCHRONE_REQUEST_PARAMS
+     * @param metric What the distance limit measures.
+     * @param hull Whether to outline the reached area rather than list its nodes.
+     * @return "origin" -> the origin node's id, and either "polygon" -> the outline as
+     * [lat, lon] pairs, or "nodes" -> a map of "id", "lat", "lon" and "distance" for each
+     * reached node, nearest first.
+     */
+    static Map<String, Object> getIsochrone(Map<String, Double> params, EdgeMetric metric,
+                                            boolean hull) {
+        Map<String, Object> result = new HashMap<>();
+        int origin = g.index.nearest(params.get("lon"), params.get("lat"));
+        if (origin < 0) {
+            result.put("nodes", new ArrayList<>());
+            return result;
+        }
+        RoadGraph roads = g.roads;
+        Isochrone reached = routers.get(metric).reachable(origin, params.get("distance"));
+        result.put("origin", roads.ids[origin]);
+        if (hull) {
+            result.put("polygon", reached.hull(ISOCHRONE_HULL_SECTORS));
+            return result;
+        }
+        List<Map<String, Object>> nodes = new ArrayList<>(reached.nodes.length);
+        for (int i = 0; i < reached.nodes.length; i++) {
+            int v = reached.nodes[i];
+            Map<String, Object> node = new HashMap<>();
+            node.put("id", roads.ids[v]);
+            node.put("lat", roads.lat[v]);
+            node.put("lon", roads.lon[v]);
+            node.put("distance", reached.distances[i]);
+            nodes.add(node);
+        }
+        result.put("nodes", nodes);
+        return result;
+    }
 
     /**
      * Handles raster API calls, queries for tiles and rasters the full image. <br>
@@ -223,6 +613,30 @@ public class MapServer {
      */
     public static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os)
             throws IOException {
+        return getMapRaster(params, os, shortestPath);
+    }
+
+    /**
+     * As getMapRaster(params, os), but drawing <code>route</code> instead of the current route.
+     * Rasters of the same tiles at the same depth under the same route are answered from the
+     * raster cache, without compositing or encoding.
+     * @param route The route to draw, through every one of its nodes.
+     */
+    static Map<String, Object> getMapRaster(Map<String, Double> params, OutputStream os,
+                                            RoutePolyline route) throws IOException {
+        RasterCache.Raster raster = raster(params, route, false);
+        os.write(raster.png);
+        return raster.params();
+    }
+
+    /**
+     * The raster getMapRaster(params, os, route) describes, from the raster cache or rendered
+     * and cached. Its PNG is shared with the cache and must not be modified.
+     * @param simplify Whether to draw the route simplified to the raster's depth, which is
+     * cheaper for long routes but not pixel for pixel the same as drawing every node.
+     */
+    static RasterCache.Raster raster(Map<String, Double> params, RoutePolyline route,
+                                     boolean simplify) throws IOException {
         HashMap<String, Object> rasteredImageParams = new HashMap<>();
         ArrayList<QTreeNode> correctNode = new ArrayList<>();
         QTreeNode temp = root.root;
@@ -240,6 +654,12 @@ public class MapServer {
         }
         root.helper(depth, params, correctNode);
         Collections.sort(correctNode);
+        String key = RasterCache.key(depth, correctNode.get(0).getImageName(),
+                correctNode.get(correctNode.size() - 1).getImageName(), route.version, simplify);
+        RasterCache.Raster cached = rasters.get(key);
+        if (cached != null) {
+            return cached;
+        }
 
         int w = (int) Math.round(Math.abs(correctNode.get(0).getUllon()
                 - correctNode.get((correctNode.size() - 1)).getLrlon())
@@ -248,20 +668,11 @@ public class MapServer {
                 - correctNode.get(correctNode.size() - 1).getLrlat())
                 / Math.abs(correctNode.get(0).getUllat() - correctNode.get(0).getLrlat())) * 256;
 
-        BufferedImage result = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
-        graphics = result.getGraphics();
-        int x = 0;
-        int y = 0;
-        for (QTreeNode node : correctNode) {
-            String image = node.getImageName();
-            BufferedImage bImage = ImageIO.read(new File(IMG_ROOT + image + ".png"));
-            if (x + bImage.getWidth() > result.getWidth()) {
-                x = 0;
-                y += bImage.getHeight();
-            }
-            graphics.drawImage(bImage, x, y, null);
-            x += bImage.getWidth();
-        }
+        int[] pixels = pixelBuffers.take(w * h);
+        drawTiles(pixels, w, h, correctNode);
+        BufferedImage result = new BufferedImage(RGB, Raster.createPackedRaster(
+                new DataBufferInt(pixels, pixels.length), w, h, w, RGB_MASKS, null), false, null);
+        Graphics graphics = result.createGraphics();
 
         Stroke stroke = new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                 BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND);
@@ -275,19 +686,22 @@ public class MapServer {
         double rasteredW = Math.abs(rasteredULLon - rasteredLRLon) / result.getWidth();
         double rasteredHeight = Math.abs(rasteredULLat - rasteredLRLat) / result.getHeight();
 
-        for (int i = 0; i < shortestPath.size() - 1; i++) {
-            Node start = g.graph.get(shortestPath.get(i).toString());
-            Node end = g.graph.get(shortestPath.get(i + 1).toString());
-            int startX = (int) ((Double.parseDouble(start.lon) - rasteredULLon) / rasteredW);
-            int startY = (int) ((rasteredULLat - (Double.parseDouble(start.lat)))
-                    / rasteredHeight);
-            int endX = (int) ((Double.parseDouble(end.lon) - rasteredULLon) / rasteredW);
-            int endY = (int) ((rasteredULLat - (Double.parseDouble(end.lat))) / rasteredHeight);
+        int[] drawn = simplify ? route.nodes(depth) : route.nodes();
+        for (int i = 0; i < drawn.length - 1; i++) {
+            int start = drawn[i];
+            int end = drawn[i + 1];
+            int startX = (int) ((route.lon[start] - rasteredULLon) / rasteredW);
+            int startY = (int) ((rasteredULLat - route.lat[start]) / rasteredHeight);
+            int endX = (int) ((route.lon[end] - rasteredULLon) / rasteredW);
+            int endY = (int) ((rasteredULLat - route.lat[end]) / rasteredHeight);
 
             graphics.drawLine(startX, startY, endX, endY);
         }
 
-        ImageIO.write(result, "png", os);
+        graphics.dispose();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        encoder.encode(result, png);
+        pixelBuffers.give(pixels);
         rasteredImageParams.put("raster_ul_lon", correctNode.get(0).getUllon());
         rasteredImageParams.put("raster_ul_lat", correctNode.get(0).getUllat());
         rasteredImageParams.put("raster_lr_lon",
@@ -298,11 +712,97 @@ public class MapServer {
         rasteredImageParams.put("raster_height", h);
         rasteredImageParams.put("depth", correctNode.get(0).getDepth());
         rasteredImageParams.put("query_success", true);
-        return rasteredImageParams;
+        RasterCache.Raster raster = new RasterCache.Raster(png.toByteArray(), rasteredImageParams);
+        rasters.put(key, raster);
+        return raster;
 
         /* Got some of the above from piazza and stack overflow */
     }
 
+    /**
+     * Copy the tiles of a raster into its pixels, in row-major order from the upper left, each
+     * in its own TILE_SIZE square. Large rasters decode and copy their tiles in parallel on
+     * the raster pool; the squares are disjoint, so no two tasks write the same pixel and the
+     * raster comes out as if they had been copied one by one.
+     * @param pixels The raster's pixels, TYPE_INT_RGB, row by row; every one is written.
+     */
+    private static void drawTiles(int[] pixels, int width, int height, List<QTreeNode> nodes)
+            throws IOException {
+        int columns = width / TILE_SIZE;
+        int cells = columns * (height / TILE_SIZE);
+        if (nodes.size() < PARALLEL_RASTER_TILES) {
+            for (int i = 0; i < cells; i++) {
+                drawTile(pixels, width, height, i < nodes.size() ? nodes.get(i) : null, i);
+            }
+            return;
+        }
+        List<Callable<Void>> draws = new ArrayList<>();
+        for (int i = 0; i < cells; i++) {
+            QTreeNode node = i < nodes.size() ? nodes.get(i) : null;
+            int cell = i;
+            draws.add(() -> {
+                drawTile(pixels, width, height, node, cell);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> draw : rasterPool.invokeAll(draws)) {
+                draw.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Cannot draw tiles", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted drawing tiles", e);
+        }
+    }
+
+    /** Copy <code>node</code>'s tile, or black if it is null, into square i of the raster. */
+    private static void drawTile(int[] pixels, int width, int height, QTreeNode node, int i)
+            throws IOException {
+        int columns = width / TILE_SIZE;
+        copyTile(pixels, width, height, node == null ? null : tiles.get(node.getImageName()),
+                i % columns * TILE_SIZE, i / columns * TILE_SIZE);
+    }
+
+    /**
+     * Copy <code>tile</code> into the TILE_SIZE square at (x, y) of a TYPE_INT_RGB raster, a
+     * scanline at a time. What the tile does not cover of the square is made black, and what
+     * it covers beyond the square is left out, so the square's pixels end up as drawing the
+     * tile into a fresh image would leave them.
+     * @param pixels The raster's pixels, row by row.
+     * @param tile The tile, or null for an all black square.
+     */
+    static void copyTile(int[] pixels, int width, int height, BufferedImage tile, int x, int y) {
+        int cellWidth = Math.min(TILE_SIZE, width - x);
+        int cellHeight = Math.min(TILE_SIZE, height - y);
+        int tileWidth = 0;
+        int tileHeight = 0;
+        int[] source = null;
+        int offset = 0;
+        int stride = 0;
+        if (tile != null) {
+            tile = TileCache.intRgb(tile);
+            tileWidth = Math.min(cellWidth, tile.getWidth());
+            tileHeight = Math.min(cellHeight, tile.getHeight());
+            DataBufferInt buffer = (DataBufferInt) tile.getRaster().getDataBuffer();
+            source = buffer.getData();
+            offset = buffer.getOffset();
+            stride = ((SinglePixelPackedSampleModel) tile.getSampleModel()).getScanlineStride();
+        }
+        for (int row = 0; row < cellHeight; row++) {
+            int to = (y + row) * width + x;
+            int copied = row < tileHeight ? tileWidth : 0;
+            if (copied > 0) {
+                System.arraycopy(source, offset + row * stride, pixels, to, copied);
+            }
+            Arrays.fill(pixels, to + copied, to + cellWidth, 0);
+        }
+    }
+
     /**
      * Searches for the shortest route satisfying the input request parameters, sets it to be the
      * current route, and returns a <code>LinkedList</code> of the route's node ids for testing
@@ -315,96 +815,97 @@ public class MapServer {
      */
     public static LinkedList<Long> findAndSetRoute(Map<String,
             Double> params) {
-        HashSet<SearchNode> hasBeenAdded = new HashSet<>();
-        for (Node newNode : visitedWithAStar) {
-            newNode.searchNode = null;
+        RoutePolyline route = polyline(findRoute(params, EdgeMetric.DEGREES));
+        shortestPath = route;
+        LinkedList<Long> ids = new LinkedList<>();
+        for (long id : route.ids) {
+            ids.add(id);
         }
-        visitedWithAStar = new HashSet<>();
+        return ids;
+    }
+
+    /**
+     * Snap the request's endpoints to the nearest road nodes and route between them. Ends
+     * that snap to different connected components are moved into one, as by sameComponent.
+     * Routes between the same pair of nodes are answered from the route cache, with no nodes
+     * expanded.
+     * @param params from the API call described in REQUIRED_ROUTE_REQUEST_PARAMS
+     * @param metric What the route minimizes.
+     * @return The route, empty if either end could not be snapped or there is no path.
+     */
+    static Route findRoute(Map<String, Double> params, EdgeMetric metric) {
         double startLon = params.get("start_lon");
         double startLat = params.get("start_lat");
         double endLon = params.get("end_lon");
         double endLat = params.get("end_lat");
-        double minStartDistance = 10000;
-        double newMinStartDistance;
-        double minEndDistance = 10000;
-        double newMinEndDistance;
-        Node minStartNode = null;
-        Node minEndNode = null;
-        clearRoute();
-
-        for (Node n : g.graph.values()) {
-            newMinStartDistance = Math.sqrt(Math.pow(startLon - Double.parseDouble(n.lon), 2)
-                    + Math.pow(startLat - Double.parseDouble(n.lat), 2));
-            newMinEndDistance = Math.sqrt(Math.pow(endLon - Double.parseDouble(n.lon), 2)
-                    + Math.pow(endLat - Double.parseDouble(n.lat), 2));
-            if (newMinStartDistance < minStartDistance) {
-                minStartDistance = newMinStartDistance;
-                minStartNode = n;
-            }
-            if (newMinEndDistance < minEndDistance) {
-                minEndDistance = newMinEndDistance;
-                minEndNode = n;
-            }
+
+        int minStartNode = g.index.nearest(startLon, startLat);
+        int minEndNode = g.index.nearest(endLon, endLat);
+        if (minStartNode < 0 || minEndNode < 0) {
+            return new Route(new int[0], Double.POSITIVE_INFINITY, 0);
         }
-        SearchNode finalnode = null;
-        SearchNode curr = new SearchNode(minStartNode, 0, true,
-                euclDist(minStartNode, minEndNode), null);
-        PriorityQueue<SearchNode> priorityQueue = new PriorityQueue<>();
-        priorityQueue.add(curr);
-        hasBeenAdded.add(curr);
-        visitedWithAStar.add(curr.node);
-        while (!curr.node.id.equals(minEndNode.id)) {
-            curr = priorityQueue.remove();
-            hasBeenAdded.remove(curr);
-            for (Node n : curr.node.connection) {
-                curr.marked = true;
-                double euclDist1 = euclDist(curr.node, n);
-                double euclDist2 = euclDist(n, minEndNode);
-                if (n.searchNode != null) {
-                    if (hasBeenAdded.contains(n.searchNode) && !n.searchNode.marked) {
-
-                        double newPriority = curr.totalDistanceFromStart
-                                + euclDist1 + euclDist2;
-                        if (newPriority < n.searchNode.priority) {
-                            priorityQueue.remove(n.searchNode);
-                            hasBeenAdded.remove(n.searchNode);
-                            SearchNode nodeToAdd = new SearchNode(n, curr.totalDistanceFromStart
-                                    + euclDist1,
-                                    true, euclDist2, curr);
-                            priorityQueue.add(nodeToAdd);
-                            hasBeenAdded.add(nodeToAdd);
-                            visitedWithAStar.add(nodeToAdd.node);
-                        }
-                    }
-                } else {
-                    SearchNode newNode = new SearchNode(n, curr.totalDistanceFromStart
-                            + euclDist1, false,
-                            euclDist2, curr);
-                    priorityQueue.add(newNode);
-                    hasBeenAdded.add(newNode);
-                    visitedWithAStar.add(newNode.node);
-                }
-            }
+        if (g.roads.component[minStartNode] != g.roads.component[minEndNode]) {
+            int[] ends = sameComponent(minStartNode, minEndNode, startLon, startLat, endLon,
+                    endLat);
+            minStartNode = ends[0];
+            minEndNode = ends[1];
         }
+        return routeCaches.get(metric).route(routers.get(metric), minStartNode, minEndNode);
+    }
 
-        finalnode = curr;
-        while (finalnode != null) {
-            shortestPath.addFirst(Long.parseLong(finalnode.node.id));
-            finalnode = finalnode.previous;
+    /**
+     * Re-snap the ends of a route that snapped to different connected components, which no
+     * route joins. The candidates are the end moved into the start's component, the start
+     * moved into the end's, and both moved into the largest component; the one that moves
+     * the ends least in total wins, ties going to the largest component.
+     * @return The start and end node to route between.
+     */
+    private static int[] sameComponent(int start, int end, double startLon, double startLat,
+                                       double endLon, double endLat) {
+        int[][] candidates = {
+            {g.index.nearest(startLon, startLat, 0), g.index.nearest(endLon, endLat, 0)},
+            {start, g.index.nearest(endLon, endLat, g.roads.component[start])},
+            {g.index.nearest(startLon, startLat, g.roads.component[end]), end},
+        };
+        int[] best = candidates[0];
+        double bestMove = Double.POSITIVE_INFINITY;
+        for (int[] candidate : candidates) {
+            double move = snapDistance(candidate[0], startLon, startLat)
+                    + snapDistance(candidate[1], endLon, endLat);
+            if (move < bestMove) {
+                best = candidate;
+                bestMove = move;
+            }
         }
-        return shortestPath;
+        return best;
+    }
+
+    /** @return The distance in degrees from (lon, lat) to road node v. */
+    private static double snapDistance(int v, double lon, double lat) {
+        return Math.sqrt(Math.pow(g.roads.lon[v] - lon, 2) + Math.pow(g.roads.lat[v] - lat, 2));
     }
 
-    public static double euclDist(Node curr, Node end) {
-        return Math.sqrt(Math.pow(Double.parseDouble(end.lon) - Double.parseDouble(curr.lon), 2)
-                + Math.pow(Double.parseDouble(end.lat) - Double.parseDouble(curr.lat), 2));
+    /** @return <code>found</code> as the raster draws it; simplified only if asked for. */
+    private static RoutePolyline polyline(Route found) {
+        int n = found.nodes.length;
+        long[] ids = new long[n];
+        double[] lon = new double[n];
+        double[] lat = new double[n];
+        for (int i = 0; i < n; i++) {
+            int v = found.nodes[i];
+            ids[i] = g.roads.ids[v];
+            lon[i] = g.roads.lon[v];
+            lat[i] = g.roads.lat[v];
+        }
+        return new RoutePolyline(ids, lon, lat, (ROOT_LRLON - ROOT_ULLON) / TILE_SIZE,
+                (ROOT_ULLAT - ROOT_LRLAT) / TILE_SIZE);
     }
 
     /**
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        shortestPath = new LinkedList<>();
+        shortestPath = RoutePolyline.EMPTY;
     }
 
     /**
@@ -438,7 +939,7 @@ public class MapServer {
      */
     public static List<Map<String, Object>> getLocations(String locationName) {
         Map<String, Object> newMap;
-        HashSet<String> newID = new HashSet<>();
+        HashSet<Long> newID = new HashSet<>();
         List<String> iterate = getLocationsByPrefix(locationName);
         iterate.add(g.lowerToNormalCase.get(locationName));
 
@@ -446,26 +947,26 @@ public class MapServer {
 
 //        for (int i = 0; i < iterate.size(); i++) {
         for (String string : iterate) {
-            ArrayList<String> iDNames = g.getID.get(string);
+            ArrayList<Long> iDNames = g.getID.get(string);
 //            TrieNode n = g.trie.get(iterate.get(i));
 
             String checker = g.lowerToNormalCase.get(locationName);
             if (checker.equals(string)) {
 //            System.out.println(n.id);
-                for (String s: iDNames) {
+                for (Long s: iDNames) {
 
                     if (!newID.contains(s)) {
                         newMap = new HashMap<>();
                         Node characteristics = g.stringToNode.get(s);
-                        String lat = characteristics.lat;
-                        String lon = characteristics.lon;
-                        String id = characteristics.id;
+                        double lat = characteristics.lat;
+                        double lon = characteristics.lon;
+                        long id = characteristics.id;
                         String name = g.lowerToNormalCase.get(characteristics.name);
 //                    System.out.println(name);
-                        newMap.put("lat", Double.parseDouble(lat));
-                        newMap.put("lon", Double.parseDouble(lon));
+                        newMap.put("lat", lat);
+                        newMap.put("lon", lon);
                         newMap.put("name", name);
-                        newMap.put("id", Long.parseLong(id));
+                        newMap.put("id", id);
                         newID.add(id);
 //                    System.out.println(newMap);
                         locations.add(newMap);
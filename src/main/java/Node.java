@@ -1,24 +1,23 @@
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by ravipatel on 4/15/16.
  */
 public class Node {
-    String id;
-    String lat;
-    String lon;
+    long id;
+    double lat;
+    double lon;
     String name;
-    Set<Node> connection;
-    SearchNode searchNode;
+    /** Neighboring road nodes, with the highway type of the edge to each. */
+    Map<Node, Highway> connection;
 
-    public Node(String id, String lat, String lon) {
+    public Node(long id, double lat, double lon) {
         this.id = id;
         this.lat = lat;
         this.lon = lon;
         this.name = "";
-        connection = new HashSet<>();
-        searchNode = null;
+        connection = new HashMap<>();
     }
 
 //    @Override
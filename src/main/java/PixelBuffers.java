@@ -0,0 +1,49 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Pool of pixel arrays for raster images, by length. Rasters are whole tiles on a side, so
+ * the viewports clients ask for come down to a handful of sizes, and a raster can take the
+ * array the last raster of its size gave back instead of allocating and zeroing megabytes
+ * for every request. The pool is bounded in the bytes of the arrays it holds; arrays given
+ * back over the bound are left to the garbage collector.
+ * <p>
+ * Arrays come out of the pool with whatever pixels they last held; callers must write every
+ * pixel they use.
+ * </p>
+ */
+public class PixelBuffers {
+    private final long maxBytes;
+    private final HashMap<Integer, ArrayDeque<int[]>> free = new HashMap<>();
+    private long bytes;
+
+    /** @param maxBytes Most bytes the arrays held by the pool may take up. */
+    public PixelBuffers(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** @return An array of <code>length</code> pixels, from the pool if it has one. */
+    public synchronized int[] take(int length) {
+        ArrayDeque<int[]> arrays = free.get(length);
+        if (arrays == null || arrays.isEmpty()) {
+            return new int[length];
+        }
+        bytes -= (long) length * Integer.BYTES;
+        return arrays.pop();
+    }
+
+    /** Give <code>pixels</code> back for reuse; the caller must not touch it after. */
+    public synchronized void give(int[] pixels) {
+        long size = (long) pixels.length * Integer.BYTES;
+        if (bytes + size > maxBytes) {
+            return;
+        }
+        free.computeIfAbsent(pixels.length, length -> new ArrayDeque<>()).push(pixels);
+        bytes += size;
+    }
+
+    /** @return The bytes held by the pooled arrays. */
+    public synchronized long bytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of rendered raster responses: the encoded PNG and the raster parameters
+ * that go with it. A raster is fully determined by the rectangle of tiles it shows, the depth
+ * they were picked at and the route drawn over them, and whether it was simplified, so many
+ * viewports from many clients come down to the same few responses; a hit answers one without
+ * compositing or encoding anything.
+ * It is bounded both in entries and in the bytes its PNGs take up.
+ * <p>
+ * Tiles never change while the server runs and a route is never modified once made, so
+ * entries never go stale; a new route has a new version and simply misses.
+ * </p>
+ */
+public class RasterCache extends LruCache<String, RasterCache.Raster> {
+    /** Rough fixed cost of one entry: the map entry, the key and the parameter map. */
+    private static final long ENTRY_BYTES = 1024;
+
+    /** A rendered raster. Neither the PNG nor the parameters are modified once cached. */
+    static class Raster {
+        final byte[] png;
+        private final Map<String, Object> params;
+
+        Raster(byte[] png, Map<String, Object> params) {
+            this.png = png;
+            this.params = new HashMap<>(params);
+        }
+
+        /** @return A copy of the raster's parameters, free for the caller to add to. */
+        HashMap<String, Object> params() {
+            return new HashMap<>(params);
+        }
+    }
+
+    /**
+     * @param maxEntries Most rasters to keep.
+     * @param maxBytes Most bytes, by estimate, the kept rasters may take up.
+     */
+    public RasterCache(int maxEntries, long maxBytes) {
+        super(maxEntries, maxBytes, RasterCache::bytes);
+    }
+
+    /**
+     * @param depth The depth the tiles were picked at.
+     * @param first Image name of the upper left tile.
+     * @param last Image name of the lower right tile.
+     * @param route Version of the route drawn over the tiles; 0 for none.
+     * @param simplified Whether the route was drawn simplified to the depth.
+     * @return The cache key of a raster.
+     */
+    static String key(int depth, String first, String last, long route, boolean simplified) {
+        return depth + ":" + first + ":" + last + ":" + route + (simplified ? ":s" : "");
+    }
+
+    private static long bytes(Raster raster) {
+        return ENTRY_BYTES + raster.png.length;
+    }
+}
@@ -0,0 +1,24 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Turns a rendered raster into the PNG bytes sent to the client. Encoding is the largest
+ * share of the work of a raster that is not cached, so the server can trade image size for
+ * encoding time by choosing its encoder; see PngEncoder.
+ */
+public interface RasterEncoder {
+    /**
+     * ImageIO's PNG writer at its default settings, which the staff test images were made
+     * with.
+     */
+    RasterEncoder IMAGEIO = (image, os) -> {
+        if (!ImageIO.write(image, "png", os)) {
+            throw new IOException("No PNG writer for " + image);
+        }
+    };
+
+    /** Write <code>image</code> to <code>os</code> as a PNG. */
+    void encode(BufferedImage image, OutputStream os) throws IOException;
+}
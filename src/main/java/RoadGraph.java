@@ -0,0 +1,302 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable compressed-sparse-row (CSR) form of the road graph, built once after the
+ * MapDBHandler has finished parsing and GraphDB has cleaned out unconnected nodes.
+ * Road nodes are renumbered to dense int indices; per-node data lives in parallel primitive
+ * arrays and the neighbors of index v are neighbors[offsets[v]] .. neighbors[offsets[v + 1] - 1].
+ * Indices follow a Hilbert curve over the map, so that nodes close together on the map are
+ * mostly close together in every array too, and a search touches few cache lines.
+ * Per-edge data is indexed like <code>neighbors</code>. The weights of every EdgeMetric and the
+ * connected components are computed once, on construction.
+ */
+public class RoadGraph {
+    /** Mean earth radius, in meters. */
+    static final double EARTH_RADIUS = 6_371_008.8;
+
+    /** Index -> OSM id. */
+    final long[] ids;
+    /** The ids in ascending order, for indexOf to binary search, and the index of each. */
+    private final long[] sortedIds;
+    private final int[] byId;
+    final double[] lat;
+    final double[] lon;
+    final int[] offsets;
+    final int[] neighbors;
+    /** Highway type ordinal of each edge. */
+    final byte[] highway;
+    private final double[] degrees;
+    private final double[] meters;
+    private final double[] seconds;
+    /**
+     * Connected component of each node, ignoring edge direction. Components are numbered
+     * from the largest down, so the main road network is component 0.
+     */
+    final int[] component;
+
+    RoadGraph(long[] ids, double[] lat, double[] lon, int[] offsets, int[] neighbors,
+              byte[] highway) {
+        this.ids = ids;
+        this.lat = lat;
+        this.lon = lon;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.highway = highway;
+        sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        byId = new int[ids.length];
+        for (int v = 0; v < ids.length; v++) {
+            byId[Arrays.binarySearch(sortedIds, ids[v])] = v;
+        }
+        degrees = new double[neighbors.length];
+        meters = new double[neighbors.length];
+        seconds = new double[neighbors.length];
+        for (int v = 0; v < size(); v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int w = neighbors[e];
+                degrees[e] = Math.sqrt(Math.pow(lon[w] - lon[v], 2)
+                        + Math.pow(lat[w] - lat[v], 2));
+                meters[e] = haversine(v, w);
+                seconds[e] = meters[e] / Highway.of(highway[e]).speed;
+            }
+        }
+        component = components();
+    }
+
+    /** Label the connected components by union-find over the edges, largest first. */
+    private int[] components() {
+        int n = size();
+        int[] parent = new int[n];
+        for (int v = 0; v < n; v++) {
+            parent[v] = v;
+        }
+        for (int v = 0; v < n; v++) {
+            for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                int a = root(parent, v);
+                int b = root(parent, neighbors[e]);
+                if (a != b) {
+                    parent[Math.max(a, b)] = Math.min(a, b);
+                }
+            }
+        }
+        int[] size = new int[n];
+        for (int v = 0; v < n; v++) {
+            size[root(parent, v)]++;
+        }
+        Integer[] roots = new Integer[n];
+        int count = 0;
+        for (int v = 0; v < n; v++) {
+            if (size[v] > 0) {
+                roots[count++] = v;
+            }
+        }
+        Arrays.sort(roots, 0, count, (a, b) -> size[b] != size[a] ? size[b] - size[a] : a - b);
+        int[] label = new int[n];
+        for (int i = 0; i < count; i++) {
+            label[roots[i]] = i;
+        }
+        int[] labels = new int[n];
+        for (int v = 0; v < n; v++) {
+            labels[v] = label[root(parent, v)];
+        }
+        return labels;
+    }
+
+    /** Find with path halving. */
+    private static int root(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    /**
+     * @return The weight of every edge under <code>metric</code>, indexed like
+     * <code>neighbors</code>. Shared; do not modify.
+     */
+    double[] weights(EdgeMetric metric) {
+        switch (metric) {
+            case DISTANCE:
+                return meters;
+            case TIME:
+                return seconds;
+            default:
+                return degrees;
+        }
+    }
+
+    /** @return The great-circle distance between nodes v and w, in meters. */
+    double haversine(int v, int w) {
+        double dLat = Math.toRadians(lat[w] - lat[v]);
+        double dLon = Math.toRadians(lon[w] - lon[v]);
+        double a = Math.pow(Math.sin(dLat / 2), 2) + Math.cos(Math.toRadians(lat[v]))
+                * Math.cos(Math.toRadians(lat[w])) * Math.pow(Math.sin(dLon / 2), 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Builds the CSR graph from the parsed road nodes, numbered along a Hilbert curve. Every
+     * connection must point at a node that is itself in <code>nodes</code>.
+     * @param nodes The cleaned road nodes.
+     * @return The immutable graph.
+     */
+    static RoadGraph build(Collection<Node> nodes) {
+        int n = nodes.size();
+        Node[] byIndex = nodes.toArray(new Node[n]);
+        long[] ids = new long[n];
+        double[] nodeLat = new double[n];
+        double[] nodeLon = new double[n];
+        for (int i = 0; i < n; i++) {
+            ids[i] = byIndex[i].id;
+            nodeLat[i] = byIndex[i].lat;
+            nodeLon[i] = byIndex[i].lon;
+        }
+        int[] order = hilbertOrder(ids, nodeLat, nodeLon);
+
+        HashMap<Node, Integer> index = new HashMap<>();
+        long[] orderedIds = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            Node node = byIndex[order[i]];
+            index.put(node, i);
+            orderedIds[i] = ids[order[i]];
+            lat[i] = node.lat;
+            lon[i] = node.lon;
+            offsets[i + 1] = offsets[i] + node.connection.size()
+                    - (node.connection.containsKey(null) ? 1 : 0);
+        }
+
+        int[] neighbors = new int[offsets[n]];
+        byte[] highway = new byte[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            int pos = offsets[i];
+            for (Map.Entry<Node, Highway> edge : byIndex[order[i]].connection.entrySet()) {
+                /* Ways may reference nodes that were clipped out of the extract. */
+                if (edge.getKey() != null) {
+                    int neighbor = index.get(edge.getKey());
+                    byte type = (byte) edge.getValue().ordinal();
+                    /* Insert in neighbor order, so that the graph does not depend on the
+                     * iteration order of the connections and every parse gives the same. */
+                    int j = pos++;
+                    for (; j > offsets[i] && neighbors[j - 1] > neighbor; j--) {
+                        neighbors[j] = neighbors[j - 1];
+                        highway[j] = highway[j - 1];
+                    }
+                    neighbors[j] = neighbor;
+                    highway[j] = type;
+                }
+            }
+        }
+        return new RoadGraph(orderedIds, lat, lon, offsets, neighbors, highway);
+    }
+
+    /**
+     * @return The indices of the given points in the order a Hilbert curve over their bounding
+     * box visits them; points in the same cell go in id order.
+     */
+    static int[] hilbertOrder(long[] ids, double[] lat, double[] lon) {
+        int n = ids.length;
+        double minLon = Double.POSITIVE_INFINITY;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLon = Math.min(minLon, lon[i]);
+            minLat = Math.min(minLat, lat[i]);
+            maxLon = Math.max(maxLon, lon[i]);
+            maxLat = Math.max(maxLat, lat[i]);
+        }
+        /* Scale both axes alike, so the curve's cells are square on the map. */
+        double cell = Math.max(Math.max(maxLon - minLon, maxLat - minLat), Double.MIN_NORMAL)
+                / (HILBERT_SIDE - 1);
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = hilbert((int) ((lon[i] - minLon) / cell), (int) ((lat[i] - minLat) / cell));
+        }
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b])
+                : Long.compare(ids[a], ids[b]));
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /** Cells along each side of the grid the Hilbert curve fills. */
+    private static final int HILBERT_SIDE = 1 << 16;
+
+    /**
+     * @return The position of cell (x, y) along a Hilbert curve filling a grid of
+     * HILBERT_SIDE x HILBERT_SIDE cells.
+     */
+    static long hilbert(int x, int y) {
+        long d = 0;
+        for (int s = HILBERT_SIDE / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_SIDE - 1 - x;
+                    y = HILBERT_SIDE - 1 - y;
+                }
+                int swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+        return d;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int edgeCount() {
+        return neighbors.length;
+    }
+
+    /** @return The index of the edge from v to w, or -1 if there is none. */
+    int edge(int v, int w) {
+        for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+            if (neighbors[e] == w) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /** @return The node that edge e leaves, by binary search over <code>offsets</code>. */
+    int source(int e) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= e) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * @param id An OSM node id.
+     * @return The dense index of that node, or -1 if it is not a road node.
+     */
+    public int indexOf(long id) {
+        int i = Arrays.binarySearch(sortedIds, id);
+        return i < 0 ? -1 : byId[i];
+    }
+}
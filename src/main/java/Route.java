@@ -0,0 +1,21 @@
+/**
+ * A route found by a Router: the road nodes on it and what it took to find it.
+ */
+public class Route {
+    /** Indices of the road nodes on the route, start first; empty if there is no route. */
+    final int[] nodes;
+    /** Total length of the route, or infinity if there is none. */
+    final double distance;
+    /** How many nodes the search settled, summed over both directions of a bidirectional one. */
+    final int nodesExpanded;
+
+    Route(int[] nodes, double distance, int nodesExpanded) {
+        this.nodes = nodes;
+        this.distance = distance;
+        this.nodesExpanded = nodesExpanded;
+    }
+
+    public boolean isEmpty() {
+        return nodes.length == 0;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of routes, keyed by the (start, end) road node pair after snapping, and
+ * bounded both in entries and in an estimate of the bytes its routes hold.
+ * <p>
+ * Each route is stamped with the generation of the router weights it was found on, and only
+ * answers lookups for that generation. A route found on the weights from before an overlay
+ * is therefore never served after it, even if it is stored after the cache was cleared for
+ * the overlay.
+ * </p>
+ * <p>
+ * Routes refer to road graph indices, so a cache belongs to one loaded graph; use a fresh
+ * one, or clear this one, whenever the graph is reloaded.
+ * </p>
+ */
+public class RouteCache extends LruCache<RouteCache.Key, Route> {
+    /** Rough fixed cost of one entry: the map entry, the key, the Route and its array header. */
+    private static final long ENTRY_BYTES = 160;
+
+    /** The ends of a route and the generation of the weights it was found on. */
+    static final class Key {
+        final int start;
+        final int end;
+        final long generation;
+
+        Key(int start, int end, long generation) {
+            this.start = start;
+            this.end = end;
+            this.generation = generation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return start == k.start && end == k.end && generation == k.generation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(start, end, generation);
+        }
+    }
+
+    /**
+     * @param maxEntries Most routes to keep.
+     * @param maxBytes Most bytes, by estimate, the kept routes may take up.
+     */
+    public RouteCache(int maxEntries, long maxBytes) {
+        super(maxEntries, maxBytes, RouteCache::bytes);
+    }
+
+    private static long bytes(Route route) {
+        return ENTRY_BYTES + (long) route.nodes.length * Integer.BYTES;
+    }
+
+    /**
+     * @return The route from <code>start</code> to <code>end</code> cached for weights of
+     * <code>generation</code>, or null. A hit makes the route the most recently used one.
+     */
+    public Route get(int start, int end, long generation) {
+        return get(new Key(start, end, generation));
+    }
+
+    /**
+     * Cache <code>route</code> as the route from <code>start</code> to <code>end</code> on
+     * weights of <code>generation</code>.
+     */
+    public void put(int start, int end, long generation, Route route) {
+        put(new Key(start, end, generation), route);
+    }
+
+    /**
+     * @return The route from <code>start</code> to <code>end</code> on <code>router</code>'s
+     * current weights: the cached one, or else found and cached unless an overlay moved the
+     * weights on during the search. A cached route reports no nodes expanded.
+     */
+    Route route(Router router, int start, int end) {
+        long generation = router.generation();
+        Route cached = get(start, end, generation);
+        if (cached != null) {
+            return new Route(cached.nodes, cached.distance, 0);
+        }
+        Route route = router.route(start, end);
+        if (router.generation() == generation) {
+            put(start, end, generation, route);
+        }
+        return route;
+    }
+}
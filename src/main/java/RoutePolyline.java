@@ -0,0 +1,176 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A route as the raster draws it: the coordinates of its nodes, and for each quadtree depth the
+ * nodes left after a Douglas-Peucker simplification to half a pixel at that depth. A route
+ * across the map has thousands of nodes, most of which fall within a pixel of their neighbors
+ * when zoomed out; drawing only the simplified line keeps the raster's cost with the pixels
+ * rather than the route.
+ * <p>
+ * The simplified line is not drawn pixel for pixel the same as the full one, so rasters draw
+ * every node unless a client asks for simplification; see MapServer.raster.
+ * </p>
+ * <p>
+ * Simplifying at a coarser tolerance only ever drops more nodes, so one Douglas-Peucker pass
+ * records, for each node, the largest tolerance at which it is still kept, and every depth's
+ * node list is read off that. The lists are built the first time a simplified raster of the
+ * route is asked for, so routes nobody draws simplified never pay for them; once built they
+ * are never modified.
+ * </p>
+ */
+public class RoutePolyline {
+    /** The deepest quadtree depth; deeper rasters are drawn from tiles of this depth. */
+    static final int MAX_DEPTH = 7;
+    private static final AtomicLong VERSIONS = new AtomicLong();
+    static final RoutePolyline EMPTY = new RoutePolyline(new long[0], new double[0],
+            new double[0], 1, 1);
+
+    /** Unique to this route among those made since startup; 0 for every empty route. */
+    final long version;
+    /** OSM ids of the route's nodes, start first. */
+    final long[] ids;
+    final double[] lon;
+    final double[] lat;
+    private final double lonPerPixel;
+    private final double latPerPixel;
+    /**
+     * For each depth, the indices of the nodes drawn at that depth, in route order; null until
+     * first asked for.
+     */
+    private volatile int[][] kept;
+    /** The indices of every node, in route order. */
+    private final int[] all;
+
+    /**
+     * @param lonPerPixel Longitude spanned by one pixel of a depth 0 tile.
+     * @param latPerPixel Latitude spanned by one pixel of a depth 0 tile.
+     */
+    RoutePolyline(long[] ids, double[] lon, double[] lat, double lonPerPixel,
+                  double latPerPixel) {
+        this.version = ids.length == 0 ? 0 : VERSIONS.incrementAndGet();
+        this.ids = ids;
+        this.lon = lon;
+        this.lat = lat;
+        all = new int[ids.length];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        this.lonPerPixel = lonPerPixel;
+        this.latPerPixel = latPerPixel;
+    }
+
+    /** @return For each depth, the indices of the nodes kept at that depth, in route order. */
+    private int[][] simplify() {
+        double[] tolerance = tolerances(lon, lat, lonPerPixel, latPerPixel);
+        int[][] kept = new int[MAX_DEPTH + 1][];
+        for (int depth = 0; depth <= MAX_DEPTH; depth++) {
+            /* Half a pixel at this depth, in depth 0 pixels. */
+            double limit = 0.5 / (1 << depth);
+            IntList nodes = new IntList();
+            for (int i = 0; i < tolerance.length; i++) {
+                if (tolerance[i] > limit) {
+                    nodes.add(i);
+                }
+            }
+            kept[depth] = nodes.toArray();
+        }
+        return kept;
+    }
+
+    /**
+     * Douglas-Peucker over the whole route, in depth 0 pixels so that a tolerance means the
+     * same on both axes. A node splits its stretch at the distance it lies from the stretch's
+     * chord, but is only kept as long as the split that made its stretch is, so its tolerance
+     * is capped by the one of the node that split above it.
+     * @return For each node, the largest tolerance at which the simplification keeps it; the
+     * ends are always kept.
+     */
+    private static double[] tolerances(double[] lon, double[] lat, double lonPerPixel,
+                                       double latPerPixel) {
+        int n = lon.length;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = lon[i] / lonPerPixel;
+            y[i] = lat[i] / latPerPixel;
+        }
+        double[] tolerance = new double[n];
+        if (n == 0) {
+            return tolerance;
+        }
+        tolerance[0] = Double.POSITIVE_INFINITY;
+        tolerance[n - 1] = Double.POSITIVE_INFINITY;
+        /* Stretches still to split, as (first, last) pairs. The node that made a stretch is
+         * one of its ends, and the lesser tolerance of the two. */
+        IntList stretches = new IntList();
+        stretches.add(0);
+        stretches.add(n - 1);
+        while (stretches.size() > 0) {
+            int last = stretches.removeLast();
+            int first = stretches.removeLast();
+            if (last - first < 2) {
+                continue;
+            }
+            double cap = Math.min(tolerance[first], tolerance[last]);
+            int split = -1;
+            double farthest = -1;
+            for (int i = first + 1; i < last; i++) {
+                double d = squaredDistance(x, y, i, first, last);
+                if (d > farthest) {
+                    split = i;
+                    farthest = d;
+                }
+            }
+            tolerance[split] = Math.min(Math.sqrt(farthest), cap);
+            stretches.add(first);
+            stretches.add(split);
+            stretches.add(split);
+            stretches.add(last);
+        }
+        return tolerance;
+    }
+
+    /** @return The squared distance from point i to the segment from point a to point b. */
+    private static double squaredDistance(double[] x, double[] y, int i, int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0
+                : Math.max(0, Math.min(1, ((x[i] - x[a]) * dx + (y[i] - y[a]) * dy) / length));
+        double ex = x[i] - x[a] - t * dx;
+        double ey = y[i] - y[a] - t * dy;
+        return ex * ex + ey * ey;
+    }
+
+    /** @return Indices of every node of the route, in route order: the unsimplified line. */
+    int[] nodes() {
+        return all;
+    }
+
+    /**
+     * @param depth Quadtree depth of the raster's tiles; deeper than MAX_DEPTH draws at it.
+     * @return Indices of the nodes to draw at <code>depth</code> when simplifying, in route
+     * order.
+     */
+    int[] nodes(int depth) {
+        int[][] levels = kept;
+        if (levels == null) {
+            synchronized (this) {
+                levels = kept;
+                if (levels == null) {
+                    levels = simplify();
+                    kept = levels;
+                }
+            }
+        }
+        return levels[Math.max(0, Math.min(depth, MAX_DEPTH))];
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public boolean isEmpty() {
+        return ids.length == 0;
+    }
+}
@@ -0,0 +1,154 @@
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Each client's current route, keyed by a route token the client holds. The store is bounded
+ * and routes expire when their client has not used them for a while.
+ * <p>
+ * Lookups are a single ConcurrentHashMap read plus a volatile write, so drawing a client's
+ * route never waits on other clients or on a route being stored. A session found expired by a
+ * lookup is removed there and then.
+ * </p>
+ * <p>
+ * Storing a route appends a record of the session and when it was last used to a queue, and
+ * sweeps the queue from its head: a record of a session that was replaced or removed is
+ * dropped, and one of a session used since it was recorded is moved to the tail with the new
+ * time. A current record at the head is of a session unused since it was recorded longest
+ * ago, which is removed if it has expired or the store is over its bound; otherwise the sweep
+ * stops. So sessions go in least recently used order, up to the order lookups are noticed in,
+ * and every record is appended and dropped once per store or lookup: storing costs O(1)
+ * amortized, however many clients there are. Stores take a lock that lookups never do.
+ * </p>
+ */
+public class RouteSessions {
+    /** Name of the cookie and of the request parameter carrying a client's route token. */
+    static final String TOKEN = "route_token";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    /** Records of sessions, oldest first; only used holding the lock. */
+    private final ArrayDeque<Record> order = new ArrayDeque<>();
+    private final int maxSessions;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+
+    /** A stored route; the polyline is never modified once stored. */
+    private static class Session {
+        final RoutePolyline route;
+        volatile long lastUsed;
+
+        Session(RoutePolyline route, long now) {
+            this.route = route;
+            this.lastUsed = now;
+        }
+    }
+
+    /** A session in the eviction queue, as of when it was last used at the time. */
+    private static class Record {
+        final String token;
+        final Session session;
+        final long used;
+
+        Record(String token, Session session, long used) {
+            this.token = token;
+            this.session = session;
+            this.used = used;
+        }
+    }
+
+    /**
+     * @param maxSessions Most routes to keep; the least recently used go first.
+     * @param ttlMillis How long an unused route is kept.
+     */
+    public RouteSessions(int maxSessions, long ttlMillis) {
+        this(maxSessions, ttlMillis, System::nanoTime);
+    }
+
+    RouteSessions(int maxSessions, long ttlMillis, LongSupplier clock) {
+        this.maxSessions = maxSessions;
+        this.ttlNanos = ttlMillis * 1_000_000;
+        this.clock = clock;
+    }
+
+    /** @return A fresh, unguessable route token. */
+    static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(32);
+        for (byte b : bytes) {
+            token.append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+        return token.toString();
+    }
+
+    /**
+     * @return The route stored for <code>token</code>, or the empty route if there is none or
+     * it has expired. Never blocks.
+     */
+    public RoutePolyline get(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return RoutePolyline.EMPTY;
+        }
+        long now = clock.getAsLong();
+        long used = session.lastUsed;
+        if (now - used > ttlNanos) {
+            sessions.remove(token, session);
+            return RoutePolyline.EMPTY;
+        }
+        if (now > used) {
+            session.lastUsed = now;
+        }
+        return session.route;
+    }
+
+    /** Make <code>route</code> the current route of <code>token</code>'s client. */
+    public synchronized void put(String token, RoutePolyline route) {
+        long now = clock.getAsLong();
+        Session session = new Session(route, now);
+        sessions.put(token, session);
+        evict(now);
+        order.add(new Record(token, session, now));
+    }
+
+    /** Forget <code>token</code>'s route. Its record is dropped by a later sweep. */
+    public void remove(String token) {
+        if (token != null) {
+            sessions.remove(token);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Sweep the queue from its head, dropping expired sessions and then the least recently
+     * used ones until under the bound, counting the session just stored.
+     */
+    private void evict(long now) {
+        Record head;
+        while ((head = order.peek()) != null) {
+            if (sessions.get(head.token) != head.session) {
+                order.poll();
+                continue;
+            }
+            long used = head.session.lastUsed;
+            if (now - used > ttlNanos) {
+                order.poll();
+                sessions.remove(head.token, head.session);
+            } else if (used != head.used) {
+                order.poll();
+                order.add(new Record(head.token, head.session, used));
+            } else if (sessions.size() > maxSessions) {
+                order.poll();
+                sessions.remove(head.token, head.session);
+            } else {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,647 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Shortest-path searches over a read-only RoadGraph, minimizing the edge weights of one
+ * EdgeMetric. The A* heuristic is the metric's straight-line bound, unless landmarks give a
+ * tighter one.
+ * <p>
+ * The A* searches and distance matrices run over the graph's ChainGraph: they only settle
+ * junctions, and their own endpoints, crossing each chain of shape points in one step. Routes
+ * still list every road node on them, shape points included.
+ * </p>
+ * <p>
+ * A Router is safe to share between threads: all search state lives in a SearchContext,
+ * and each thread reuses its own.
+ * </p>
+ */
+public class Router {
+    /** The searches shortestPath can run. */
+    enum Algorithm {
+        /** Unidirectional A* over the road graph. */
+        ASTAR,
+        /** A* from both ends at once, with averaged potentials. */
+        BIDIRECTIONAL_ASTAR,
+        /** Bidirectional upward search over a contraction hierarchy. */
+        CONTRACTION_HIERARCHY
+    }
+
+    /**
+     * Road edge weights with the overlay applied, and the chain weights summed from them.
+     * Replaced as a whole, never modified, so a search that reads it once sees one consistent
+     * set of weights.
+     */
+    private static final class Weights {
+        final double[] edges;
+        final double[] chains;
+
+        Weights(double[] edges, ChainGraph chainGraph) {
+            this.edges = edges;
+            this.chains = chainGraph.weights(edges);
+        }
+    }
+
+    /**
+     * The hops that join a search's endpoints to the chains when they are shape points: from
+     * the endpoint along its chain to the first junction or other endpoint either way, and
+     * from each such junction back to the endpoint. Hop i leaves its node by road edge
+     * <code>edges[i]</code>, ends at <code>to[i]</code> and weighs <code>weights[i]</code>.
+     * <p>
+     * The hops leaving a node are linked through <code>next</code>, and an open-addressing
+     * table maps each node to the first of them, so settling a node visits only its own hops
+     * however many endpoints the search has.
+     * </p>
+     */
+    private static final class Stops {
+        final int[] edges;
+        final int[] to;
+        final double[] weights;
+        /** The next hop added leaving the same node as hop i, or -1. */
+        final int[] next;
+        /** Nodes hops leave, or -1 for an empty slot; at most half full. */
+        private final int[] nodes;
+        /** The first and last hops added leaving nodes[slot]. */
+        private final int[] firsts;
+        private final int[] lasts;
+        /** 32 less the log of the table size: Fibonacci hashing keeps the top bits. */
+        private final int shift;
+        int count;
+
+        Stops(int capacity) {
+            edges = new int[capacity];
+            to = new int[capacity];
+            weights = new double[capacity];
+            next = new int[capacity];
+            int slots = Integer.highestOneBit(Math.max(1, capacity)) * 4;
+            shift = 32 - Integer.numberOfTrailingZeros(slots);
+            nodes = new int[slots];
+            firsts = new int[slots];
+            lasts = new int[slots];
+            Arrays.fill(nodes, -1);
+        }
+
+        void add(int v, int e, int w, double weight) {
+            edges[count] = e;
+            to[count] = w;
+            weights[count] = weight;
+            next[count] = -1;
+            int slot = slot(v);
+            if (nodes[slot] == v) {
+                next[lasts[slot]] = count;
+            } else {
+                nodes[slot] = v;
+                firsts[slot] = count;
+            }
+            lasts[slot] = count++;
+        }
+
+        /** @return The first hop added leaving <code>v</code>, or -1 if none does. */
+        int first(int v) {
+            int slot = slot(v);
+            return nodes[slot] == v ? firsts[slot] : -1;
+        }
+
+        /** @return The slot holding <code>v</code>, or the empty one it would go in. */
+        private int slot(int v) {
+            int mask = nodes.length - 1;
+            int slot = v * 0x9E3779B1 >>> shift;
+            while (nodes[slot] != -1 && nodes[slot] != v) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    private final RoadGraph roads;
+    private final ChainGraph chains;
+    private final EdgeMetric metric;
+    /** Current weights: the metric's, with the overlay applied. */
+    private volatile Weights weights;
+    private final ThreadLocal<SearchContext> contexts;
+    private final ThreadLocal<SearchContext> backwardContexts;
+    private ContractionHierarchy hierarchy;
+    private volatile ContractionHierarchy.Metric hierarchyMetric;
+    private volatile Landmarks landmarks;
+    /** Written last when switching algorithms, so readers see the state it needs. */
+    private volatile Algorithm algorithm = Algorithm.ASTAR;
+    /** How many overlays have been applied; written after the weights they produce. */
+    private volatile long generation;
+
+    /** A router minimizing straight-line distance in degrees. */
+    public Router(RoadGraph roads) {
+        this(roads, EdgeMetric.DEGREES);
+    }
+
+    public Router(RoadGraph roads, EdgeMetric metric) {
+        this(roads, new ChainGraph(roads), metric);
+    }
+
+    /**
+     * @param chains The chains of <code>roads</code>, shared between routers over it.
+     */
+    public Router(RoadGraph roads, ChainGraph chains, EdgeMetric metric) {
+        this.roads = roads;
+        this.chains = chains;
+        this.metric = metric;
+        this.weights = new Weights(roads.weights(metric), chains);
+        this.contexts = ThreadLocal.withInitial(() -> new SearchContext(roads.size()));
+        this.backwardContexts = ThreadLocal.withInitial(() -> new SearchContext(roads.size()));
+    }
+
+    /** @return The calling thread's search context. */
+    SearchContext context() {
+        return contexts.get();
+    }
+
+    Algorithm algorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Switch between the searches that need no preprocessing.
+     * @param a ASTAR or BIDIRECTIONAL_ASTAR; use useHierarchy for the other.
+     */
+    void setAlgorithm(Algorithm a) {
+        if (a == Algorithm.CONTRACTION_HIERARCHY) {
+            throw new IllegalArgumentException("Use useHierarchy to route on a hierarchy.");
+        }
+        algorithm = a;
+    }
+
+    /**
+     * Tighten the A* heuristics with the ALT bound of <code>l</code> from now on.
+     * @param l Landmarks over this router's road graph and edge weights, or null to go back
+     * to the straight-line bound alone.
+     */
+    void useLandmarks(Landmarks l) {
+        landmarks = l;
+    }
+
+    EdgeMetric metric() {
+        return metric;
+    }
+
+    /**
+     * @return The generation of the current weights, which every overlay moves on. A route
+     * found after reading generation g was found on weights of generation g or later, so
+     * whatever is cached for g is stale once the generation has moved on.
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Answer shortestPath queries with <code>ch</code> from now on, customized to this
+     * router's edge weights.
+     * @param ch A hierarchy built over this router's road graph.
+     */
+    synchronized void useHierarchy(ContractionHierarchy ch) {
+        hierarchyMetric = ch.customize(roads, weights.edges);
+        hierarchy = ch;
+        algorithm = Algorithm.CONTRACTION_HIERARCHY;
+    }
+
+    /**
+     * Scale the weight of road edges by a factor from now on, for both directions of each
+     * road. Searches already running finish on the old weights. A contraction hierarchy in
+     * use is recustomized for just the changed edges.
+     * <p>
+     * Factors may only slow roads down. Landmark and straight-line bounds are computed from
+     * the unchanged weights, and stay lower bounds only as long as no weight drops below
+     * them.
+     * </p>
+     * @param v Road graph index of one end of each road.
+     * @param w Road graph index of the other end of each road.
+     * @param factors The factor for each road: 1 restores its weight, infinity closes it.
+     * @throws IllegalArgumentException If a factor is below 1, or v and w are not joined; the
+     * message names nodes by their OSM ids.
+     */
+    synchronized void overlay(int[] v, int[] w, double[] factors) {
+        double[] base = roads.weights(metric);
+        double[] updated = weights.edges.clone();
+        IntList changed = new IntList();
+        for (int i = 0; i < factors.length; i++) {
+            if (!(factors[i] >= 1)) {
+                throw new IllegalArgumentException("Overlay factors must be at least 1.");
+            }
+            int forward = roads.edge(v[i], w[i]);
+            int backward = roads.edge(w[i], v[i]);
+            if (forward == -1 || backward == -1) {
+                throw new IllegalArgumentException("No road joins " + roads.ids[v[i]] + " and "
+                        + roads.ids[w[i]]);
+            }
+            for (int e : new int[]{forward, backward}) {
+                updated[e] = factors[i] == Double.POSITIVE_INFINITY ? factors[i]
+                        : base[e] * factors[i];
+                changed.add(e);
+            }
+        }
+        if (hierarchy != null) {
+            hierarchyMetric = hierarchy.recustomize(roads, updated, hierarchyMetric,
+                    changed.toArray());
+        }
+        weights = new Weights(updated, chains);
+        generation++;
+    }
+
+    /**
+     * Shortest route from <code>start</code> to <code>end</code> with the current algorithm,
+     * using the calling thread's contexts. Ends in different connected components get the
+     * empty route at once, without a search.
+     */
+    public Route route(int start, int end) {
+        if (roads.component[start] != roads.component[end]) {
+            return new Route(new int[0], Double.POSITIVE_INFINITY, 0);
+        }
+        switch (algorithm) {
+            case CONTRACTION_HIERARCHY:
+                return hierarchy.shortestPath(start, end, hierarchyMetric, context(),
+                        backwardContexts.get());
+            case BIDIRECTIONAL_ASTAR:
+                return bidirectionalAStar(start, end, context(), backwardContexts.get());
+            default:
+                return aStar(start, end, context());
+        }
+    }
+
+    /**
+     * @return The node indices on the shortest path from <code>start</code> to
+     * <code>end</code>, start first; empty if there is none.
+     */
+    public int[] shortestPath(int start, int end) {
+        return route(start, end).nodes;
+    }
+
+    /**
+     * A* search from <code>start</code> to <code>end</code> over the chains. A cheaper path to
+     * a queued node lowers its key in place. Landmark bounds are only consistent up to float
+     * rounding, so a node that has left the queue goes back in if a strictly shorter path to
+     * it turns up.
+     * @param context Scratch state for this search; overwritten.
+     * @return The shortest route.
+     */
+    public Route aStar(int start, int end, SearchContext context) {
+        Weights weights = this.weights;
+        double[] chainWeights = weights.chains;
+        Stops stops = stops(new int[]{start, end}, null, weights.edges);
+        context.reset();
+        IndexMinPQ queue = context.queue;
+        context.reach(start, 0, -1);
+        queue.insert(start, estimate(start, end));
+        while (!queue.isEmpty()) {
+            int v = queue.delMin();
+            context.settle(v);
+            if (v == end) {
+                return new Route(path(end, context), context.distance[end], context.expanded);
+            }
+            double distanceFromStart = context.distance[v];
+            if (chains.isJunction(v)) {
+                for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                    int n = chains.head[e];
+                    double newDistance = distanceFromStart + chainWeights[e];
+                    if (newDistance < context.distance(n)) {
+                        context.reach(n, newDistance, e);
+                        queue.insertOrDecrease(n, newDistance + estimate(n, end));
+                    }
+                }
+            }
+            for (int h = stops.first(v); h != -1; h = stops.next[h]) {
+                int n = stops.to[h];
+                double newDistance = distanceFromStart + stops.weights[h];
+                if (newDistance < context.distance(n)) {
+                    context.reach(n, newDistance, stops.edges[h]);
+                    queue.insertOrDecrease(n, newDistance + estimate(n, end));
+                }
+            }
+        }
+        return new Route(new int[0], Double.POSITIVE_INFINITY, context.expanded);
+    }
+
+    /**
+     * A* from both ends at once. Its stopping rule needs exactly consistent potentials, so it
+     * keeps to the straight-line bound and ignores landmarks. Both searches use the averaged
+     * potential p(v) = (h_end(v) - h_start(v)) / 2, forward keys being g(v) + p(v) and
+     * backward keys g(v) - p(v), so both see the same non-negative reduced edge costs. Then,
+     * as in plain bidirectional Dijkstra, the best meeting point is final once the two
+     * smallest keys add up to at least its length.
+     * @param forward Scratch state for the search from <code>start</code>; overwritten.
+     * @param backward Scratch state for the search from <code>end</code>; overwritten.
+     * @return The shortest route.
+     */
+    public Route bidirectionalAStar(int start, int end, SearchContext forward,
+                                    SearchContext backward) {
+        Weights weights = this.weights;
+        double[] chainWeights = weights.chains;
+        Stops stops = stops(new int[]{start, end}, null, weights.edges);
+        forward.reset();
+        backward.reset();
+        forward.reach(start, 0, -1);
+        forward.queue.insert(start, potential(start, start, end));
+        backward.reach(end, 0, -1);
+        backward.queue.insert(end, -potential(end, start, end));
+        double best = start == end ? 0 : Double.POSITIVE_INFINITY;
+        int meet = start == end ? start : -1;
+
+        while (!forward.queue.isEmpty() && !backward.queue.isEmpty()
+                && forward.queue.minKey() + backward.queue.minKey() < best) {
+            boolean goForward = forward.queue.minKey() <= backward.queue.minKey();
+            SearchContext search = goForward ? forward : backward;
+            SearchContext other = goForward ? backward : forward;
+            double sign = goForward ? 1 : -1;
+            int v = search.queue.delMin();
+            search.settle(v);
+            double distanceFromSource = search.distance[v];
+            boolean junction = chains.isJunction(v);
+            int last = junction ? roads.offsets[v + 1] : roads.offsets[v];
+            /* Chains out of a junction first, then any hops leaving v. */
+            for (int i = roads.offsets[v], h = stops.first(v); i < last || h != -1; ) {
+                boolean chain = i < last;
+                int n = chain ? chains.head[i] : stops.to[h];
+                double weight = chain ? chainWeights[i] : stops.weights[h];
+                int edge = chain ? i : stops.edges[h];
+                if (chain) {
+                    i++;
+                } else {
+                    h = stops.next[h];
+                }
+                if (search.isSettled(n)) {
+                    continue;
+                }
+                double newDistance = distanceFromSource + weight;
+                if (newDistance < search.distance(n)) {
+                    search.reach(n, newDistance, edge);
+                    search.queue.insertOrDecrease(n,
+                            newDistance + sign * potential(n, start, end));
+                    double total = newDistance + other.distance(n);
+                    if (total < best) {
+                        best = total;
+                        meet = n;
+                    }
+                }
+            }
+        }
+
+        int expanded = forward.expanded + backward.expanded;
+        if (meet == -1) {
+            return new Route(new int[0], Double.POSITIVE_INFINITY, expanded);
+        }
+        int[] toMeet = path(meet, forward);
+        int[] fromEnd = path(meet, backward);
+        int[] nodes = Arrays.copyOf(toMeet, toMeet.length + fromEnd.length - 1);
+        for (int i = toMeet.length; i < nodes.length; i++) {
+            nodes[i] = fromEnd[nodes.length - 1 - i];
+        }
+        return new Route(nodes, best, expanded);
+    }
+
+    /**
+     * Road distances from every source to every target, by one Dijkstra search over the
+     * chains per source that stops once all targets in the source's connected component are
+     * settled. Sources with no target in their component are not searched at all. Sources are
+     * searched in parallel on the common fork-join pool, each worker thread using its own
+     * context.
+     * @return distances[i][j] from sources[i] to targets[j]; infinity if there is no path.
+     */
+    double[][] distanceMatrix(int[] sources, int[] targets) {
+        boolean[] isTarget = new boolean[roads.size()];
+        Map<Integer, Integer> targetCounts = new HashMap<>();
+        for (int t : targets) {
+            if (!isTarget[t]) {
+                isTarget[t] = true;
+                targetCounts.merge(roads.component[t], 1, Integer::sum);
+            }
+        }
+        double[][] distances = new double[sources.length][];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            int targetCount = targetCounts.getOrDefault(roads.component[sources[i]], 0);
+            if (targetCount == 0) {
+                distances[i] = new double[targets.length];
+                Arrays.fill(distances[i], Double.POSITIVE_INFINITY);
+            } else {
+                distances[i] = oneToMany(sources[i], targets, isTarget, targetCount, context());
+            }
+        });
+        return distances;
+    }
+
+    private double[] oneToMany(int source, int[] targets, boolean[] isTarget, int targetCount,
+                               SearchContext context) {
+        Weights weights = this.weights;
+        double[] chainWeights = weights.chains;
+        int[] endpoints = Arrays.copyOf(targets, targets.length + 1);
+        endpoints[targets.length] = source;
+        Stops stops = stops(endpoints, isTarget, weights.edges);
+        context.reset();
+        IndexMinPQ queue = context.queue;
+        context.reach(source, 0, -1);
+        queue.insert(source, 0);
+        int found = 0;
+        while (!queue.isEmpty() && found < targetCount) {
+            int v = queue.delMin();
+            context.settle(v);
+            if (isTarget[v]) {
+                found++;
+            }
+            double distanceFromSource = context.distance[v];
+            if (chains.isJunction(v)) {
+                for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                    int n = chains.head[e];
+                    double newDistance = distanceFromSource + chainWeights[e];
+                    if (!context.isSettled(n) && newDistance < context.distance(n)) {
+                        context.reach(n, newDistance, e);
+                        queue.insertOrDecrease(n, newDistance);
+                    }
+                }
+            }
+            for (int h = stops.first(v); h != -1; h = stops.next[h]) {
+                int n = stops.to[h];
+                double newDistance = distanceFromSource + stops.weights[h];
+                if (!context.isSettled(n) && newDistance < context.distance(n)) {
+                    context.reach(n, newDistance, stops.edges[h]);
+                    queue.insertOrDecrease(n, newDistance);
+                }
+            }
+        }
+        double[] row = new double[targets.length];
+        for (int j = 0; j < targets.length; j++) {
+            row[j] = context.isSettled(targets[j]) ? context.distance[targets[j]]
+                    : Double.POSITIVE_INFINITY;
+        }
+        return row;
+    }
+
+    /**
+     * Every node within <code>limit</code> of <code>source</code>, by a Dijkstra search that
+     * stops at the first node beyond it. Uses the calling thread's context, so repeated
+     * requests allocate only the result.
+     * @return The reached nodes, nearest first, with their distances from the source.
+     */
+    Isochrone reachable(int source, double limit) {
+        double[] weights = this.weights.edges;
+        SearchContext context = context();
+        context.reset();
+        IndexMinPQ queue = context.queue;
+        context.reach(source, 0, -1);
+        queue.insert(source, 0);
+        IntList reached = new IntList();
+        while (!queue.isEmpty() && queue.minKey() <= limit) {
+            int v = queue.delMin();
+            context.settle(v);
+            reached.add(v);
+            double distanceFromSource = context.distance[v];
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int n = roads.neighbors[e];
+                if (context.isSettled(n)) {
+                    continue;
+                }
+                double newDistance = distanceFromSource + weights[e];
+                if (newDistance <= limit && newDistance < context.distance(n)) {
+                    context.reach(n, newDistance, e);
+                    queue.insertOrDecrease(n, newDistance);
+                }
+            }
+        }
+        int[] nodes = reached.toArray();
+        double[] distances = new double[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            distances[i] = context.distance[nodes[i]];
+        }
+        return new Isochrone(roads, source, nodes, distances);
+    }
+
+    /** Forward potential of v for a search between start and end. */
+    private double potential(int v, int start, int end) {
+        return (straightLine(v, end) - straightLine(v, start)) / 2;
+    }
+
+    /**
+     * A* heuristic: a lower bound on the road distance between <code>v</code> and
+     * <code>t</code>, the larger of the straight-line bound and the landmark bound.
+     */
+    private double estimate(int v, int t) {
+        double bound = straightLine(v, t);
+        Landmarks l = landmarks;
+        return l == null ? bound : Math.max(bound, l.lowerBound(v, t));
+    }
+
+    /**
+     * The hops for a search between <code>endpoints</code>, for those of them that are shape
+     * points. Walks along a chain stop at junctions and at endpoints.
+     * @param marked Marks the endpoints walks stop at, or null to stop at all of them.
+     */
+    private Stops stops(int[] endpoints, boolean[] marked, double[] edgeWeights) {
+        int capacity = 0;
+        for (int t : endpoints) {
+            capacity += chains.isJunction(t) ? 0 : 4;
+        }
+        Stops stops = new Stops(capacity);
+        for (int t : endpoints) {
+            if (chains.isJunction(t)) {
+                continue;
+            }
+            for (int f = roads.offsets[t]; f < roads.offsets[t + 1]; f++) {
+                int prev = t;
+                int cur = roads.neighbors[f];
+                while (!chains.isJunction(cur) && !(marked == null
+                        ? contains(endpoints, cur) : marked[cur])) {
+                    int next = roads.neighbors[chains.onward(prev, cur)];
+                    prev = cur;
+                    cur = next;
+                }
+                stops.add(t, f, cur, stretch(t, f, cur, edgeWeights));
+                if (chains.isJunction(cur)) {
+                    int e = roads.edge(cur, prev);
+                    stops.add(cur, e, t, stretch(cur, e, t, edgeWeights));
+                }
+            }
+        }
+        return stops;
+    }
+
+    private static boolean contains(int[] nodes, int v) {
+        for (int n : nodes) {
+            if (n == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return The weight of the walk from v along edge e, across shape points, up to node to. */
+    private double stretch(int v, int e, int to, double[] edgeWeights) {
+        double weight = edgeWeights[e];
+        for (int prev = v, cur = roads.neighbors[e]; cur != to; ) {
+            int f = chains.onward(prev, cur);
+            weight += edgeWeights[f];
+            prev = cur;
+            cur = roads.neighbors[f];
+        }
+        return weight;
+    }
+
+    /**
+     * Walk the parent edges back from <code>end</code> to the search's source. Each node was
+     * reached by an edge leaving the node before it; the shape points that edge leads across
+     * are filled in on the way.
+     * @return The road nodes from the source to <code>end</code>.
+     */
+    private int[] path(int end, SearchContext context) {
+        IntList reversed = new IntList();
+        IntList hop = new IntList();
+        reversed.add(end);
+        for (int n = end; context.previous[n] != -1; ) {
+            int e = context.previous[n];
+            int v = roads.source(e);
+            hop.clear();
+            for (int prev = v, cur = roads.neighbors[e]; cur != n; ) {
+                hop.add(cur);
+                int next = roads.neighbors[chains.onward(prev, cur)];
+                prev = cur;
+                cur = next;
+            }
+            for (int i = hop.size() - 1; i >= 0; i--) {
+                reversed.add(hop.get(i));
+            }
+            reversed.add(v);
+            n = v;
+        }
+        int[] path = new int[reversed.size()];
+        for (int i = 0; i < path.length; i++) {
+            path[i] = reversed.get(path.length - 1 - i);
+        }
+        return path;
+    }
+
+    /**
+     * @return The current weight of every road edge, overlay included, indexed like
+     * <code>roads.neighbors</code>. Shared; do not modify.
+     */
+    double[] weights() {
+        return weights.edges;
+    }
+
+    /**
+     * Lower bound on the weight of any path between two nodes: the straight-line distance,
+     * in the metric's units, and for travel time covered at the fastest road speed.
+     */
+    private double straightLine(int v, int t) {
+        switch (metric) {
+            case DISTANCE:
+                return roads.haversine(v, t);
+            case TIME:
+                return roads.haversine(v, t) / Highway.MAX_SPEED;
+            default:
+                return euclDist(v, t);
+        }
+    }
+
+    /**
+     * Straight-line distance, in degrees, between two road graph nodes.
+     */
+    double euclDist(int curr, int end) {
+        return Math.sqrt(Math.pow(roads.lon[end] - roads.lon[curr], 2)
+                + Math.pow(roads.lat[end] - roads.lat[curr], 2));
+    }
+}
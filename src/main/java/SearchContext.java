@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Per-search scratch state for route searches over a RoadGraph: tentative distances, parent
+ * pointers, the settled set and the open queue. The graph itself is never written to, so any
+ * number of searches can run at once as long as each has its own context.
+ * <p>
+ * Contexts are meant to be reused. Instead of clearing its arrays before every search, a
+ * context bumps a generation number; an entry only counts if its stamp matches the current
+ * generation.
+ * </p>
+ */
+public class SearchContext {
+    final double[] distance;
+    /** How each node was reached: its parent node, or for a Router search the parent edge. */
+    final int[] previous;
+    private final int[] reached;
+    private final int[] settled;
+    private int generation;
+    /** Nodes settled since the last reset. */
+    int expanded;
+    final IndexMinPQ queue;
+
+    public SearchContext(int size) {
+        distance = new double[size];
+        previous = new int[size];
+        reached = new int[size];
+        settled = new int[size];
+        queue = new IndexMinPQ(size);
+    }
+
+    public int size() {
+        return distance.length;
+    }
+
+    /** Forget the previous search. */
+    void reset() {
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            Arrays.fill(reached, 0);
+            Arrays.fill(settled, 0);
+            generation = 1;
+        }
+        queue.clear();
+        expanded = 0;
+    }
+
+    /** @return The best distance to <code>v</code> found so far, or infinity. */
+    double distance(int v) {
+        return reached[v] == generation ? distance[v] : Double.POSITIVE_INFINITY;
+    }
+
+    void reach(int v, double d, int parent) {
+        reached[v] = generation;
+        distance[v] = d;
+        previous[v] = parent;
+    }
+
+    boolean isSettled(int v) {
+        return settled[v] == generation;
+    }
+
+    void settle(int v) {
+        settled[v] = generation;
+        expanded++;
+    }
+}
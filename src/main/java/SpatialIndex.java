@@ -0,0 +1,213 @@
+/**
+ * Static 2-d tree over the road graph's nodes, answering nearest-node queries in
+ * (lon, lat) degree space without scanning every node.
+ * <p>
+ * The tree is implicit: <code>order</code> is a permutation of node indices in which the
+ * subtree over order[lo, hi) has its splitting node at the middle position, and splits on
+ * longitude at even depths and latitude at odd depths.
+ * </p>
+ */
+public class SpatialIndex {
+    private final RoadGraph roads;
+    private final int[] order;
+
+    public SpatialIndex(RoadGraph roads) {
+        this.roads = roads;
+        this.order = new int[roads.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        build(0, order.length, 0);
+    }
+
+    private void build(int lo, int hi, int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(lo, hi - 1, mid, depth % 2 == 0);
+        build(lo, mid, depth + 1);
+        build(mid + 1, hi, depth + 1);
+    }
+
+    /** Quickselect: put the node with rank k on the chosen axis at order[k]. */
+    private void select(int lo, int hi, int k, boolean byLon) {
+        while (lo < hi) {
+            double pivot = coordinate(order[(lo + hi) >>> 1], byLon);
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (coordinate(order[i], byLon) < pivot) {
+                    i++;
+                }
+                while (coordinate(order[j], byLon) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int swap = order[i];
+                    order[i] = order[j];
+                    order[j] = swap;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private double coordinate(int node, boolean byLon) {
+        return byLon ? roads.lon[node] : roads.lat[node];
+    }
+
+    /**
+     * @return The index of the road node closest to (lon, lat), or -1 if the graph is empty.
+     * Ties go to the lowest OSM id.
+     */
+    public int nearest(double lon, double lat) {
+        int[] best = kNearest(lon, lat, 1);
+        return best.length == 0 ? -1 : best[0];
+    }
+
+    /**
+     * @return The index of the node of connected component <code>component</code> closest
+     * to (lon, lat), or -1 if there is no such component. Ties go to the lowest OSM id.
+     */
+    public int nearest(double lon, double lat, int component) {
+        Candidates found = new Candidates(Math.min(1, order.length), roads.ids);
+        if (found.capacity > 0) {
+            search(0, order.length, 0, lon, lat, component, found);
+        }
+        int[] best = found.sorted();
+        return best.length == 0 ? -1 : best[0];
+    }
+
+    /**
+     * @return The indices of the <code>k</code> road nodes closest to (lon, lat), nearest
+     * first. Fewer are returned if the graph has fewer than <code>k</code> nodes.
+     */
+    public int[] kNearest(double lon, double lat, int k) {
+        Candidates found = new Candidates(Math.min(k, order.length), roads.ids);
+        if (found.capacity > 0) {
+            search(0, order.length, 0, lon, lat, -1, found);
+        }
+        return found.sorted();
+    }
+
+    /** @param component Only offer nodes of this connected component, or any if -1. */
+    private void search(int lo, int hi, int depth, double lon, double lat, int component,
+                        Candidates found) {
+        if (lo >= hi) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        int node = order[mid];
+        double dLon = lon - roads.lon[node];
+        double dLat = lat - roads.lat[node];
+        if (component == -1 || roads.component[node] == component) {
+            found.offer(node, dLon * dLon + dLat * dLat);
+        }
+
+        double split = depth % 2 == 0 ? dLon : dLat;
+        if (split < 0) {
+            search(lo, mid, depth + 1, lon, lat, component, found);
+            if (split * split <= found.bound()) {
+                search(mid + 1, hi, depth + 1, lon, lat, component, found);
+            }
+        } else {
+            search(mid + 1, hi, depth + 1, lon, lat, component, found);
+            if (split * split <= found.bound()) {
+                search(lo, mid, depth + 1, lon, lat, component, found);
+            }
+        }
+    }
+
+    /** Bounded max-heap of the best candidates seen so far, keyed by squared distance. */
+    private static class Candidates {
+        final int capacity;
+        final int[] nodes;
+        final double[] distances;
+        /** OSM id of every node, to break ties by. */
+        private final long[] ids;
+        int size;
+
+        Candidates(int capacity, long[] ids) {
+            this.capacity = capacity;
+            this.ids = ids;
+            this.nodes = new int[capacity];
+            this.distances = new double[capacity];
+        }
+
+        double bound() {
+            return size < capacity ? Double.POSITIVE_INFINITY : distances[0];
+        }
+
+        void offer(int node, double distance) {
+            if (size < capacity) {
+                nodes[size] = node;
+                distances[size] = distance;
+                siftUp(size++);
+            } else if (worse(distances[0], nodes[0], distance, node)) {
+                nodes[0] = node;
+                distances[0] = distance;
+                siftDown(0, size);
+            }
+        }
+
+        /** Whether (d1, n1) ranks behind (d2, n2); equal distances prefer the lower id. */
+        private boolean worse(double d1, int n1, double d2, int n2) {
+            return d1 > d2 || (d1 == d2 && ids[n1] > ids[n2]);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!worse(distances[i], nodes[i], distances[parent], nodes[parent])) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int n) {
+            while (2 * i + 1 < n) {
+                int child = 2 * i + 1;
+                if (child + 1 < n && worse(distances[child + 1], nodes[child + 1],
+                        distances[child], nodes[child])) {
+                    child++;
+                }
+                if (!worse(distances[child], nodes[child], distances[i], nodes[i])) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+
+        private void swap(int i, int j) {
+            int node = nodes[i];
+            nodes[i] = nodes[j];
+            nodes[j] = node;
+            double distance = distances[i];
+            distances[i] = distances[j];
+            distances[j] = distance;
+        }
+
+        /** Empties the heap, returning its nodes nearest first. */
+        int[] sorted() {
+            int[] result = new int[size];
+            for (int n = size - 1; n >= 0; n--) {
+                result[n] = nodes[0];
+                swap(0, n);
+                siftDown(0, n);
+            }
+            return result;
+        }
+    }
+}
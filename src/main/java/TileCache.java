@@ -0,0 +1,178 @@
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Bounded LRU cache of decoded map tiles, keyed by QTreeNode image name. Every raster is
+ * composited from tiles, and the same few hundred around the middle of the map make up most
+ * of them, so decoding each PNG once instead of on every request takes disk reads and PNG
+ * inflation off the raster path. The cache is bounded by an estimate of the bytes the decoded
+ * pixels take up.
+ * <p>
+ * A tile missing from the cache is decoded outside the lock, so hits never wait on a decode.
+ * Requests that miss on a tile another request is already decoding wait for that decode
+ * rather than repeating it, and count as hits. A failed decode is not cached; everyone
+ * waiting on it gets the error, and the next request tries again.
+ * </p>
+ * <p>
+ * Tiles are kept as TYPE_INT_RGB, the type of the raster they are copied into, so compositing
+ * is a plain copy of pixels. Cached images are shared between requests and must only be
+ * read, never drawn on.
+ * </p>
+ */
+public class TileCache {
+    /** Rough fixed cost of one entry: the map entry, the name and the image's objects. */
+    private static final long ENTRY_BYTES = 512;
+
+    /** Reads and decodes the tile with the given image name. */
+    interface Loader {
+        BufferedImage load(String name) throws IOException;
+    }
+
+    /** A decode in progress; image or error is set before done is counted down. */
+    private static class Pending {
+        final CountDownLatch done = new CountDownLatch(1);
+        BufferedImage image;
+        IOException error;
+    }
+
+    private final Loader loader;
+    /**
+     * The decoded tiles. Its hit and miss counts go unused: TileCache counts waiting on
+     * another request's decode as a hit.
+     */
+    private final LruCache<String, BufferedImage> tiles;
+    private final HashMap<String, Pending> pending = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    /**
+     * @param root Directory holding the tiles, as &lt;root&gt;&lt;image name&gt;.png.
+     * @param maxBytes Most bytes, by estimate, the decoded tiles may take up.
+     */
+    public TileCache(String root, long maxBytes) {
+        this(maxBytes, name -> {
+            BufferedImage image = ImageIO.read(new File(root + name + ".png"));
+            if (image == null) {
+                throw new IOException("Cannot decode tile " + root + name + ".png");
+            }
+            return intRgb(image);
+        });
+    }
+
+    TileCache(long maxBytes, Loader loader) {
+        this.tiles = new LruCache<>(Integer.MAX_VALUE, maxBytes, TileCache::bytes);
+        this.loader = loader;
+    }
+
+    /**
+     * @return <code>image</code> as TYPE_INT_RGB: itself if it already is, else drawn over
+     * black, which gives exactly the pixels drawing it into a fresh raster would.
+     */
+    static BufferedImage intRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(),
+                BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return rgb;
+    }
+
+    /** @return The estimated bytes held by a decoded image's pixels, plus the entry. */
+    static long bytes(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return ENTRY_BYTES + (long) buffer.getSize() * buffer.getNumBanks()
+                * DataBuffer.getDataTypeSize(buffer.getDataType()) / Byte.SIZE;
+    }
+
+    /**
+     * @return The decoded tile named <code>name</code>, from the cache if it is there. A hit
+     * makes the tile the most recently used one.
+     * @throws IOException If the tile could not be read or decoded.
+     */
+    public BufferedImage get(String name) throws IOException {
+        Pending load;
+        boolean decode = false;
+        synchronized (this) {
+            BufferedImage image = tiles.get(name);
+            if (image != null) {
+                hits++;
+                return image;
+            }
+            load = pending.get(name);
+            if (load == null) {
+                load = new Pending();
+                pending.put(name, load);
+                decode = true;
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        if (decode) {
+            try {
+                load.image = loader.load(name);
+            } catch (IOException e) {
+                load.error = e;
+            } catch (RuntimeException e) {
+                load.error = new IOException("Cannot decode tile " + name, e);
+            } finally {
+                synchronized (this) {
+                    pending.remove(name);
+                    if (load.image != null) {
+                        tiles.put(name, load.image);
+                    }
+                }
+                load.done.countDown();
+            }
+        } else {
+            try {
+                load.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for tile " + name, e);
+            }
+        }
+        if (load.error != null) {
+            throw load.error;
+        }
+        return load.image;
+    }
+
+    /** Drop every cached tile. The hit and miss counts are kept. */
+    public void clear() {
+        tiles.clear();
+    }
+
+    public int size() {
+        return tiles.size();
+    }
+
+    /** @return The estimated bytes held by the cached tiles. */
+    public long bytes() {
+        return tiles.bytes();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /** @return How many requests decoded their tile. */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /** @return The fraction of requests answered without a decode of their own; 0 if none. */
+    public synchronized double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+}
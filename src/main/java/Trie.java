@@ -37,11 +37,11 @@ public class Trie {
 
 
 
-    public void put(String key, String id) {
+    public void put(String key, long id) {
         put(root, key, 0, id);
     }
 
-    private void put(TrieNode x, String key, int d, String id) {
+    private void put(TrieNode x, String key, int d, long id) {
         if (x == null) {
             x = new TrieNode(' ', new HashMap<Character, TrieNode>());
         }
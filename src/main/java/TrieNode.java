@@ -13,7 +13,7 @@ public class TrieNode {
     TrieNode parent;
     int size;
     boolean isAWord;
-    ArrayList<String> id;
+    ArrayList<Long> id;
 
     public TrieNode(char c, HashMap<Character, TrieNode> possibleCharacters, TrieNode parent) {
         this.c = c;
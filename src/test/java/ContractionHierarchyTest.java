@@ -0,0 +1,99 @@
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.ObjectInputStream;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+public class ContractionHierarchyTest {
+
+    private static int[] chRoute(ContractionHierarchy ch, ContractionHierarchy.Metric metric,
+                                 int start, int end, int size) {
+        return ch.shortestPath(start, end, metric, new SearchContext(size),
+                new SearchContext(size)).nodes;
+    }
+
+    /**
+     * Unpacked CH routes must be the same node sequences A* finds.
+     */
+    @Test
+    public void testMatchesAStarOnGrid() {
+        RoadGraph roads = RouterTest.grid(40, 7);
+        Router router = new Router(roads);
+        ContractionHierarchy ch = ContractionHierarchy.build(roads);
+        ContractionHierarchy.Metric metric = ch.customize(roads, router.weights());
+        Random random = new Random(8);
+        for (int q = 0; q < 300; q++) {
+            int start = random.nextInt(roads.size());
+            int end = random.nextInt(roads.size());
+            assertArrayEquals("Route " + start + " -> " + end,
+                    router.aStar(start, end, router.context()).nodes,
+                    chRoute(ch, metric, start, end, roads.size()));
+        }
+        assertArrayEquals(new int[]{5}, chRoute(ch, metric, 5, 5, roads.size()));
+    }
+
+    /**
+     * Recustomizing for a few changed roads must give exactly the arc weights a full
+     * customization to the new weights gives, closures included.
+     */
+    @Test
+    public void testRecustomizeMatchesCustomize() {
+        RoadGraph roads = RouterTest.grid(30, 15);
+        ContractionHierarchy ch = ContractionHierarchy.build(roads);
+        double[] weights = roads.weights(EdgeMetric.DISTANCE).clone();
+        ContractionHierarchy.Metric metric = ch.customize(roads, weights);
+        Random random = new Random(16);
+        for (int round = 0; round < 5; round++) {
+            IntList changed = new IntList();
+            for (int i = 0; i < 10; i++) {
+                int v = random.nextInt(roads.size());
+                int degree = roads.offsets[v + 1] - roads.offsets[v];
+                if (degree == 0) {
+                    continue;
+                }
+                int e = roads.offsets[v] + random.nextInt(degree);
+                int back = roads.edge(roads.neighbors[e], v);
+                double w = i % 3 == 0 ? Double.POSITIVE_INFINITY : weights[e] * 3;
+                weights[e] = w;
+                weights[back] = w;
+                changed.add(e);
+                changed.add(back);
+            }
+            metric = ch.recustomize(roads, weights, metric, changed.toArray());
+            assertArrayEquals(ch.customize(roads, weights).weight, metric.weight, 0);
+        }
+    }
+
+    /**
+     * The route cases of the staff test data, answered by the hierarchy.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testMatchesTestParamsRoutes() throws Exception {
+        assumeTrue(new File("test_ser_data").exists());
+        List<TestParams> params;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream("test_ser_data"))) {
+            params = (List<TestParams>) ois.readObject();
+        }
+        GraphDB g = new GraphDB("berkeley.osm");
+        Router router = new Router(g.roads);
+        router.useHierarchy(g.hierarchy());
+        for (TestParams p : params) {
+            int start = g.index.nearest(p.route_params.get("start_lon"),
+                    p.route_params.get("start_lat"));
+            int end = g.index.nearest(p.route_params.get("end_lon"),
+                    p.route_params.get("end_lat"));
+            LinkedList<Long> route = new LinkedList<>();
+            for (int n : router.shortestPath(start, end)) {
+                route.add(g.roads.ids[n]);
+            }
+            assertEquals("CH route differs for input: " + p.route_params + ".\n",
+                    p.route_result, route);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import static org.junit.Assert.*;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class GraphSnapshotTest {
+    private static final String[] NAMES = {"Top Dog", "Caf\u00e9 Strada", "Peet's Coffee & Tea",
+        "Top Dog", "Berkeley Bowl", "Bear's Lair", "Berkeley Bowl West", "Top Hat"};
+    private static final String[] PREFIXES = {"t", "top", "b", "berkeley", "caf", "peets"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Write a small OSM extract: a grid of nodes joined by ways of assorted highway types, some
+     * of them not roads, and named nodes both on the roads and off them, with repeated names.
+     */
+    private File osm() throws IOException {
+        Random random = new Random(2);
+        File file = folder.newFile("map.osm");
+        String[] types = {"residential", "primary", "footway", "living_street", "Residential",
+            "motorway_link", "service", "tertiary"};
+        try (PrintWriter out = new PrintWriter(file, "UTF-8")) {
+            out.println("<?xml version='1.0' encoding='UTF-8'?>");
+            out.println("<osm version=\"0.6\">");
+            int side = 8;
+            for (int i = 0; i < side * side + NAMES.length; i++) {
+                out.printf("  <node id=\"%d\" lat=\"%.7f\" lon=\"%.7f\">%n", 5000 + 13 * i,
+                        37.85 + random.nextDouble() * 0.02, -122.27 + random.nextDouble() * 0.02);
+                if (i % 9 == 4 || i >= side * side) {
+                    String name = NAMES[i % NAMES.length];
+                    out.printf("    <tag k=\"name\" v=\"%s\"/>%n", name.replace("&", "&amp;")
+                            .replace("'", "&apos;"));
+                }
+                out.println("  </node>");
+            }
+            for (int w = 0; w < 30; w++) {
+                out.printf("  <way id=\"%d\">%n", 90000 + w);
+                int v = random.nextInt(side * side);
+                for (int n = 0; n < 2 + random.nextInt(5); n++) {
+                    out.printf("    <nd ref=\"%d\"/>%n", 5000 + 13 * v);
+                    v = Math.floorMod(v + (random.nextBoolean() ? 1 : side), side * side);
+                }
+                out.printf("    <tag k=\"highway\" v=\"%s\"/>%n", types[w % types.length]);
+                out.println("  </way>");
+            }
+            out.println("</osm>");
+        }
+        return file;
+    }
+
+    private static File snapshot(File osm) {
+        return new File(osm.getPath() + GraphSnapshot.EXTENSION);
+    }
+
+    private static List<String> sorted(List<String> words) {
+        List<String> copy = new ArrayList<>(words);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    /** Assert that <code>actual</code> holds the same graph and locations as expected. */
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertArrayEquals(expected.roads.ids, actual.roads.ids);
+        assertArrayEquals(expected.roads.lat, actual.roads.lat, 0);
+        assertArrayEquals(expected.roads.lon, actual.roads.lon, 0);
+        assertArrayEquals(expected.roads.offsets, actual.roads.offsets);
+        assertArrayEquals(expected.roads.neighbors, actual.roads.neighbors);
+        assertArrayEquals(expected.roads.highway, actual.roads.highway);
+        assertArrayEquals(expected.roads.component, actual.roads.component);
+
+        assertEquals(expected.rawNames, actual.rawNames);
+        assertEquals(expected.namedNodes.size(), actual.namedNodes.size());
+        for (int i = 0; i < expected.namedNodes.size(); i++) {
+            Node e = expected.namedNodes.get(i);
+            Node a = actual.namedNodes.get(i);
+            assertEquals(e.id, a.id);
+            assertEquals(e.lat, a.lat, 0);
+            assertEquals(e.lon, a.lon, 0);
+            assertEquals(e.name, a.name);
+        }
+        assertEquals(expected.getID, actual.getID);
+        assertEquals(expected.lowerToNormalCase, actual.lowerToNormalCase);
+        assertEquals(expected.stringToNode.keySet(), actual.stringToNode.keySet());
+        for (String prefix : PREFIXES) {
+            assertEquals(prefix, sorted(expected.trie.autoComplete(prefix)),
+                    sorted(actual.trie.autoComplete(prefix)));
+        }
+        for (int v = 0; v < expected.roads.size(); v++) {
+            assertEquals(v, actual.roads.indexOf(expected.roads.ids[v]));
+        }
+    }
+
+    /**
+     * A second load must come from the snapshot, which parsing would have rewritten, and give
+     * the same graph and locations as parsing.
+     */
+    @Test
+    public void testSnapshotRoundTrips() throws Exception {
+        File osm = osm();
+        GraphDB parsed = new GraphDB(osm.getPath());
+        File snapshot = snapshot(osm);
+        assertTrue(snapshot.isFile());
+        assertTrue(parsed.roads.size() > 10);
+        assertTrue(parsed.getID.get("Top Dog").size() > 1);
+        assertEquals("Caf\u00e9 Strada", parsed.lowerToNormalCase.get("caf strada"));
+
+        assertTrue(snapshot.setLastModified(1_000_000_000_000L));
+        GraphDB loaded = new GraphDB(osm.getPath());
+        assertEquals(1_000_000_000_000L, snapshot.lastModified());
+        assertSameGraph(parsed, loaded);
+    }
+
+    /**
+     * A snapshot stamped with another checksum, of another version or cut short must not be
+     * used: the graph is parsed again, as if there were no snapshot, and a good snapshot is
+     * written in its place.
+     */
+    @Test
+    public void testStaleOrDamagedSnapshotFallsBackToParsing() throws Exception {
+        File osm = osm();
+        GraphDB parsed = new GraphDB(osm.getPath());
+        File snapshot = snapshot(osm);
+        byte[] good = Files.readAllBytes(snapshot.toPath());
+        for (String damage : new String[]{"checksum", "version", "truncated"}) {
+            try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+                if (damage.equals("checksum")) {
+                    file.seek(16);
+                    file.writeLong(GraphSnapshot.checksum(osm) ^ 1);
+                } else if (damage.equals("version")) {
+                    file.seek(4);
+                    int version = file.readInt();
+                    file.seek(4);
+                    file.writeInt(version - 1);
+                } else {
+                    file.setLength(good.length / 2);
+                }
+            }
+            GraphDB reparsed = new GraphDB(osm.getPath());
+            assertSameGraph(parsed, reparsed);
+            assertArrayEquals(damage, good, Files.readAllBytes(snapshot.toPath()));
+        }
+    }
+
+    /** Editing the OSM file changes its checksum, so the old snapshot is not used. */
+    @Test
+    public void testEditedSourceIsParsedAgain() throws Exception {
+        File osm = osm();
+        new GraphDB(osm.getPath());
+        String xml = new String(Files.readAllBytes(osm.toPath()), StandardCharsets.UTF_8);
+        Files.write(osm.toPath(), xml.replace("Top Hat", "Top Hut")
+                .getBytes(StandardCharsets.UTF_8));
+        GraphDB edited = new GraphDB(osm.getPath());
+        assertTrue(edited.getID.containsKey("Top Hut"));
+        assertFalse(edited.getID.containsKey("Top Hat"));
+    }
+}
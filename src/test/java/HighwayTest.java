@@ -0,0 +1,15 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class HighwayTest {
+    @Test
+    public void testParseMatchesTagsExactly() {
+        assertEquals(Highway.RESIDENTIAL, Highway.parse("residential"));
+        assertEquals(Highway.LIVING_STREET, Highway.parse("living_street"));
+        assertEquals(Highway.MOTORWAY_LINK, Highway.parse("motorway_link"));
+        assertNull(Highway.parse("Residential"));
+        assertNull(Highway.parse("PRIMARY"));
+        assertNull(Highway.parse("service"));
+        assertNull(Highway.parse(null));
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class IndexMinPQTest {
+    /**
+     * Random inserts, decrease-keys and delete-mins against a brute-force array of keys.
+     */
+    @Test
+    public void testMatchesBruteForce() {
+        int capacity = 200;
+        IndexMinPQ pq = new IndexMinPQ(capacity);
+        double[] keys = new double[capacity];
+        boolean[] queued = new boolean[capacity];
+        Random random = new Random(5);
+        for (int step = 0; step < 20000; step++) {
+            int i = random.nextInt(capacity);
+            int op = random.nextInt(3);
+            if (op == 0 && !queued[i]) {
+                keys[i] = random.nextDouble();
+                queued[i] = true;
+                pq.insert(i, keys[i]);
+            } else if (op == 1 && queued[i]) {
+                keys[i] *= random.nextDouble();
+                pq.decreaseKey(i, keys[i]);
+            } else if (op == 2 && !pq.isEmpty()) {
+                double min = Double.POSITIVE_INFINITY;
+                for (int j = 0; j < capacity; j++) {
+                    if (queued[j]) {
+                        min = Math.min(min, keys[j]);
+                    }
+                }
+                assertEquals(min, pq.minKey(), 0);
+                int removed = pq.delMin();
+                assertEquals(min, keys[removed], 0);
+                queued[removed] = false;
+            }
+            assertEquals(queued[i], pq.contains(i));
+        }
+    }
+
+    @Test
+    public void testClearEmptiesQueue() {
+        IndexMinPQ pq = new IndexMinPQ(10);
+        for (int i = 0; i < 10; i++) {
+            pq.insert(i, 10 - i);
+        }
+        pq.clear();
+        assertTrue(pq.isEmpty());
+        for (int i = 0; i < 10; i++) {
+            assertFalse(pq.contains(i));
+        }
+        pq.insert(3, 1.0);
+        assertEquals(3, pq.delMin());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIncreaseKeyRejected() {
+        IndexMinPQ pq = new IndexMinPQ(4);
+        pq.insert(1, 0.5);
+        pq.decreaseKey(1, 0.75);
+    }
+}
@@ -0,0 +1,38 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LandmarksTest {
+    /**
+     * For every strategy the landmark bound must never exceed the true distance, and A* with
+     * landmarks must find routes as short as plain A* while settling fewer nodes.
+     */
+    @Test
+    public void testBoundsAreAdmissibleAndRoutesShortest() {
+        RoadGraph roads = RouterTest.grid(40, 11);
+        Router plain = new Router(roads);
+        for (Landmarks.Strategy strategy : Landmarks.Strategy.values()) {
+            Landmarks landmarks = Landmarks.build(roads, plain.weights(), 8, strategy);
+            assertEquals(8, landmarks.count());
+            Router alt = new Router(roads);
+            alt.useLandmarks(landmarks);
+            Random random = new Random(12);
+            long plainExpanded = 0;
+            long altExpanded = 0;
+            for (int q = 0; q < 200; q++) {
+                int start = random.nextInt(roads.size());
+                int end = random.nextInt(roads.size());
+                Route expected = plain.route(start, end);
+                Route found = alt.route(start, end);
+                assertEquals(strategy + " " + start + " -> " + end,
+                        expected.distance, found.distance, 1e-12);
+                assertTrue(landmarks.lowerBound(start, end) <= expected.distance);
+                plainExpanded += expected.nodesExpanded;
+                altExpanded += found.nodesExpanded;
+            }
+            assertTrue(strategy + " expanded " + altExpanded + " nodes, plain A* "
+                    + plainExpanded, altExpanded < plainExpanded);
+        }
+    }
+}
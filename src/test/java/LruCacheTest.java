@@ -0,0 +1,77 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+public class LruCacheTest {
+    /** A cache of strings weighing their length. */
+    private static LruCache<String, String> cache(int maxEntries, long maxBytes) {
+        return new LruCache<>(maxEntries, maxBytes, String::length);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverEntryLimit() {
+        LruCache<String, String> cache = cache(2, Long.MAX_VALUE);
+        cache.put("a", "1");
+        cache.put("b", "22");
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "333");
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("333", cache.get("c"));
+        assertEquals(4, cache.bytes());
+        assertEquals(3, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverByteLimit() {
+        LruCache<String, String> cache = cache(100, 10);
+        cache.put("a", "xxxx");
+        cache.put("b", "xxxx");
+        cache.get("a");
+        cache.put("c", "xxxx");
+        assertEquals(8, cache.bytes());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+
+        cache.put("d", "xxxxxxxxxxx");
+        assertNull(cache.get("d"));
+        assertEquals(2, cache.size());
+        cache.put("e", "xxxxxxxxxx");
+        assertEquals(1, cache.size());
+        assertEquals(10, cache.bytes());
+    }
+
+    @Test
+    public void testReplaceAndRemoveKeepBytes() {
+        LruCache<String, String> cache = cache(10, 100);
+        cache.put("a", "xxxx");
+        cache.put("a", "xx");
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.bytes());
+        cache.remove("a");
+        cache.remove("missing");
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+
+        LruCache<String, String> none = cache(0, 100);
+        none.put("a", "x");
+        assertEquals(0, none.size());
+    }
+
+    @Test
+    public void testClearKeepsCounts() {
+        LruCache<String, String> cache = cache(10, 100);
+        cache.put("a", "old");
+        cache.put("b", "new");
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("c"));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+    }
+}
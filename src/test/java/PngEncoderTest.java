@@ -0,0 +1,112 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+public class PngEncoderTest {
+    /** Smooth gradients with noise, so every filter has something to do; odd sized. */
+    private static BufferedImage image(int width, int height) {
+        Random random = new Random(24);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int noise = random.nextInt(8);
+                image.setRGB(x, y, ((x + noise) & 0xff) << 16 | ((y * 3) & 0xff) << 8
+                        | ((x ^ y) + noise) & 0xff);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Check every chunk's CRC and inflate the IDAT data as one zlib stream, which checks its
+     * Adler-32.
+     * @return The inflated, filtered rows.
+     */
+    private static byte[] inflate(byte[] png) throws Exception {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(png));
+        in.skipBytes(8);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        String type;
+        do {
+            byte[] data = new byte[in.readInt()];
+            byte[] name = new byte[4];
+            in.readFully(name);
+            in.readFully(data);
+            CRC32 crc = new CRC32();
+            crc.update(name);
+            crc.update(data);
+            assertEquals((int) crc.getValue(), in.readInt());
+            type = new String(name, "US-ASCII");
+            if (type.equals("IDAT")) {
+                idat.write(data);
+            }
+        } while (!type.equals("IEND"));
+        Inflater inflater = new Inflater();
+        inflater.setInput(idat.toByteArray());
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        while (!inflater.finished()) {
+            int n = inflater.inflate(buffer);
+            assertTrue(n > 0 || !inflater.needsInput());
+            rows.write(buffer, 0, n);
+        }
+        inflater.end();
+        return rows.toByteArray();
+    }
+
+    @Test
+    public void testEveryFilterRoundTrips() throws Exception {
+        int width = 301;
+        int height = 700;
+        BufferedImage image = image(width, height);
+        int[] expected = image.getRGB(0, 0, width, height, null, 0, width);
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        try {
+            for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+                for (ExecutorService bands : new ExecutorService[]{null, pool}) {
+                    for (int level : new int[]{0, 1, 6, 9}) {
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        new PngEncoder(level, filter, bands).encode(image, os);
+                        String name = filter + " level " + level + (bands == null ? "" : " banded");
+                        assertEquals(name, height * (1 + 3 * width),
+                                inflate(os.toByteArray()).length);
+                        BufferedImage decoded = ImageIO.read(
+                                new ByteArrayInputStream(os.toByteArray()));
+                        assertArrayEquals(name, expected,
+                                decoded.getRGB(0, 0, width, height, null, 0, width));
+                    }
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCombinedChecksum() {
+        Random random = new Random(2);
+        byte[] data = new byte[200_000];
+        random.nextBytes(data);
+        Adler32 whole = new Adler32();
+        whole.update(data);
+        for (int split : new int[]{0, 1, 65521, 100_000, 199_999}) {
+            Adler32 first = new Adler32();
+            first.update(data, 0, split);
+            Adler32 second = new Adler32();
+            second.update(data, split, data.length - split);
+            assertEquals(whole.getValue(), PngEncoder.combine(first.getValue(),
+                    second.getValue(), data.length - split));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Stand-alone timing harness for raster compositing and encoding. Not a JUnit test; run it by
+ * hand:
+ * <pre>
+ *     java -cp target/classes:target/test-classes RasterBenchmark
+ * </pre>
+ * Composites rasters from generated tiles already in memory, the way getMapRaster does once
+ * its tiles are cached, and encodes them. Timing uses RoutingBenchmark.report.
+ */
+public class RasterBenchmark {
+    private static final int COLUMNS = 8;
+    private static final int ROWS = 5;
+
+    public static void main(String[] args) {
+        BufferedImage[] decoded = tiles(COLUMNS * ROWS);
+        BufferedImage[] rgb = new BufferedImage[decoded.length];
+        for (int i = 0; i < decoded.length; i++) {
+            rgb[i] = TileCache.intRgb(decoded[i]);
+        }
+        benchmarkCompositing(decoded, rgb);
+        benchmarkEncoding(rgb);
+    }
+
+    /**
+     * Tiles as ImageIO decodes opaque PNGs, 3-byte BGR, drawn like a street map: a plain
+     * background with parks and blocks, antialiased roads of a few widths and some labels.
+     */
+    private static BufferedImage[] tiles(int count) {
+        Random random = new Random(23);
+        Color[] roads = {Color.WHITE, new Color(252, 214, 164), new Color(247, 250, 191)};
+        BufferedImage[] tiles = new BufferedImage[count];
+        for (int i = 0; i < count; i++) {
+            tiles[i] = new BufferedImage(MapServer.TILE_SIZE, MapServer.TILE_SIZE,
+                    BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D graphics = tiles[i].createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+                    RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            graphics.setColor(new Color(242, 239, 233));
+            graphics.fillRect(0, 0, MapServer.TILE_SIZE, MapServer.TILE_SIZE);
+            for (int j = 0; j < 6; j++) {
+                graphics.setColor(j % 2 == 0 ? new Color(200, 250, 204) : new Color(217, 208, 201));
+                graphics.fillRoundRect(random.nextInt(256), random.nextInt(256),
+                        20 + random.nextInt(80), 20 + random.nextInt(80), 8, 8);
+            }
+            for (int j = 0; j < 14; j++) {
+                int width = 2 + random.nextInt(9);
+                graphics.setStroke(new BasicStroke(width + 2, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                graphics.setColor(new Color(180, 176, 170));
+                int[] line = {random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256)};
+                graphics.drawLine(line[0], line[1], line[2], line[3]);
+                graphics.setStroke(new BasicStroke(width, BasicStroke.CAP_ROUND,
+                        BasicStroke.JOIN_ROUND));
+                graphics.setColor(roads[j % roads.length]);
+                graphics.drawLine(line[0], line[1], line[2], line[3]);
+            }
+            graphics.setColor(new Color(80, 80, 80));
+            for (int j = 0; j < 4; j++) {
+                graphics.drawString("Street " + random.nextInt(100), random.nextInt(200),
+                        10 + random.nextInt(240));
+            }
+            graphics.dispose();
+        }
+        return tiles;
+    }
+
+    /**
+     * drawImage into a fresh TYPE_INT_RGB image, as getMapRaster used to, against copying the
+     * tiles' scanlines into a pooled pixel array.
+     */
+    private static void benchmarkCompositing(BufferedImage[] decoded, BufferedImage[] rgb) {
+        int width = COLUMNS * MapServer.TILE_SIZE;
+        int height = ROWS * MapServer.TILE_SIZE;
+        RoutingBenchmark.report("drawImage, 3-byte BGR tiles, new image", 1,
+                () -> RoutingBenchmark.sink += drawImage(decoded, width, height));
+        RoutingBenchmark.report("drawImage, int RGB tiles, new image", 1,
+                () -> RoutingBenchmark.sink += drawImage(rgb, width, height));
+        RoutingBenchmark.report("copyTile, int RGB tiles, new array", 1, () -> {
+            int[] pixels = new int[width * height];
+            copy(rgb, pixels, width, height);
+            RoutingBenchmark.sink += pixels[width + 1];
+        });
+        PixelBuffers buffers = new PixelBuffers(64L << 20);
+        RoutingBenchmark.report("copyTile, int RGB tiles, pooled array", 1, () -> {
+            int[] pixels = buffers.take(width * height);
+            copy(rgb, pixels, width, height);
+            RoutingBenchmark.sink += pixels[width + 1];
+            buffers.give(pixels);
+        });
+    }
+
+    /**
+     * Each encoder on rasters the size of a laptop, a full HD and a 4K viewport, with the
+     * size of its output.
+     */
+    private static void benchmarkEncoding(BufferedImage[] tiles) {
+        ForkJoinPool pool = new ForkJoinPool();
+        Map<String, RasterEncoder> encoders = new LinkedHashMap<>();
+        encoders.put("ImageIO", RasterEncoder.IMAGEIO);
+        for (int level : new int[]{1, 2, 4, 6}) {
+            encoders.put("level " + level, new PngEncoder(level, PngEncoder.Filter.NONE, null));
+            encoders.put("level " + level + " banded",
+                    new PngEncoder(level, PngEncoder.Filter.NONE, pool));
+        }
+        encoders.put("level 4 UP", new PngEncoder(4, PngEncoder.Filter.UP, null));
+        encoders.put("level 4 ADAPTIVE", new PngEncoder(4, PngEncoder.Filter.ADAPTIVE, null));
+        System.out.println("Encoding, " + pool.getParallelism() + " threads for banded");
+        for (int[] size : new int[][]{{5, 3}, {8, 5}, {16, 9}}) {
+            int width = size[0] * MapServer.TILE_SIZE;
+            int height = size[1] * MapServer.TILE_SIZE;
+            int[] pixels = new int[width * height];
+            for (int i = 0; i < size[0] * size[1]; i++) {
+                MapServer.copyTile(pixels, width, height, tiles[i % tiles.length],
+                        i % size[0] * MapServer.TILE_SIZE, i / size[0] * MapServer.TILE_SIZE);
+            }
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+            for (Map.Entry<String, RasterEncoder> encoder : encoders.entrySet()) {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                encode(encoder.getValue(), image, os);
+                RoutingBenchmark.report(width + "x" + height + " " + encoder.getKey() + ", "
+                        + os.size() / 1024 + " KB", 1, () -> {
+                            ByteArrayOutputStream out = new ByteArrayOutputStream(os.size());
+                            encode(encoder.getValue(), image, out);
+                            RoutingBenchmark.sink += out.size();
+                        });
+            }
+        }
+        pool.shutdown();
+    }
+
+    private static void encode(RasterEncoder encoder, BufferedImage image, OutputStream os) {
+        try {
+            encoder.encode(image, os);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int drawImage(BufferedImage[] tiles, int width, int height) {
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics graphics = result.getGraphics();
+        for (int i = 0; i < tiles.length; i++) {
+            graphics.drawImage(tiles[i], i % COLUMNS * MapServer.TILE_SIZE,
+                    i / COLUMNS * MapServer.TILE_SIZE, null);
+        }
+        graphics.dispose();
+        return result.getRGB(1, 1);
+    }
+
+    private static void copy(BufferedImage[] tiles, int[] pixels, int width, int height) {
+        for (int i = 0; i < tiles.length; i++) {
+            MapServer.copyTile(pixels, width, height, tiles[i], i % COLUMNS * MapServer.TILE_SIZE,
+                    i / COLUMNS * MapServer.TILE_SIZE);
+        }
+    }
+}
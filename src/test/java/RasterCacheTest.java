@@ -0,0 +1,49 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class RasterCacheTest {
+    private static RasterCache.Raster raster(int bytes) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("raster_width", 256);
+        return new RasterCache.Raster(new byte[bytes], params);
+    }
+
+    @Test
+    public void testKeyedByTilesDepthAndRouteDrawing() {
+        RasterCache cache = new RasterCache(10, Long.MAX_VALUE);
+        RasterCache.Raster plain = raster(10);
+        cache.put(RasterCache.key(2, "13", "24", 0, false), plain);
+        assertSame(plain, cache.get(RasterCache.key(2, "13", "24", 0, false)));
+        assertNull(cache.get(RasterCache.key(2, "13", "24", 7, false)));
+        assertNull(cache.get(RasterCache.key(2, "13", "23", 0, false)));
+        assertNull(cache.get(RasterCache.key(3, "13", "24", 0, false)));
+        assertNull(cache.get(RasterCache.key(2, "13", "24", 0, true)));
+        assertEquals(1, cache.hits());
+        assertEquals(4, cache.misses());
+    }
+
+    @Test
+    public void testParamsAreCopied() {
+        RasterCache.Raster raster = raster(10);
+        Map<String, Object> params = raster.params();
+        params.put("b64_encoded_image_data", "...");
+        assertEquals(1, raster.params().size());
+        assertEquals(256, raster.params().get("raster_width"));
+    }
+
+    @Test
+    public void testWeighsRastersByPng() {
+        RasterCache cache = new RasterCache(100, 3 * (1024 + 1000));
+        cache.put("a", raster(1000));
+        cache.put("b", raster(1000));
+        cache.put("c", raster(1000));
+        assertEquals(3 * (1024 + 1000), cache.bytes());
+        cache.put("d", raster(1000));
+        assertEquals(3, cache.size());
+        cache.put("e", raster(10000));
+        assertNull(cache.get("e"));
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class RoadGraphTest {
+    /**
+     * The first 4^k positions of the curve fill the 2^k x 2^k block at the origin, each cell
+     * once, and consecutive positions are neighboring cells.
+     */
+    @Test
+    public void testHilbertCurveVisitsNeighbors() {
+        int side = 64;
+        int[][] cells = new int[side * side][];
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                long d = RoadGraph.hilbert(x, y);
+                assertTrue(d < cells.length);
+                assertNull(cells[(int) d]);
+                cells[(int) d] = new int[]{x, y};
+            }
+        }
+        for (int d = 1; d < cells.length; d++) {
+            assertEquals(1, Math.abs(cells[d][0] - cells[d - 1][0])
+                    + Math.abs(cells[d][1] - cells[d - 1][1]));
+        }
+    }
+
+    /**
+     * A street grid whose OSM ids are shuffled must keep every node and road under its id,
+     * and be numbered so that the ends of an edge are much closer in index than by id.
+     */
+    @Test
+    public void testBuildNumbersAlongTheCurve() {
+        int side = 40;
+        Random random = new Random(25);
+        List<Node> nodes = new ArrayList<>();
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < side * side; i++) {
+            ids.add(100L + 7 * i);
+        }
+        Collections.shuffle(ids, random);
+        for (int i = 0; i < side * side; i++) {
+            nodes.add(new Node(ids.get(i), 37.88 - (i / side) * 0.001,
+                    -122.29 + (i % side) * 0.001));
+        }
+        for (int i = 0; i < side * side; i++) {
+            if (i % side + 1 < side) {
+                nodes.get(i).connection.put(nodes.get(i + 1), Highway.RESIDENTIAL);
+                nodes.get(i + 1).connection.put(nodes.get(i), Highway.RESIDENTIAL);
+            }
+            if (i + side < side * side) {
+                nodes.get(i).connection.put(nodes.get(i + side), Highway.PRIMARY);
+                nodes.get(i + side).connection.put(nodes.get(i), Highway.PRIMARY);
+            }
+        }
+        RoadGraph roads = RoadGraph.build(nodes);
+
+        assertEquals(nodes.size(), roads.size());
+        long curveGap = 0;
+        long idGap = 0;
+        for (Node node : nodes) {
+            int v = roads.indexOf(node.id);
+            assertEquals(node.id, roads.ids[v]);
+            assertEquals(node.lat, roads.lat[v], 0);
+            assertEquals(node.connection.size(), roads.offsets[v + 1] - roads.offsets[v]);
+            for (Node other : node.connection.keySet()) {
+                int e = roads.edge(v, roads.indexOf(other.id));
+                assertTrue(e != -1);
+                assertEquals(node.connection.get(other).ordinal(), roads.highway[e]);
+                curveGap += Math.abs(v - roads.indexOf(other.id));
+                /* Ids are 100 + 7 * rank. */
+                idGap += Math.abs(node.id - other.id) / 7;
+            }
+        }
+        assertEquals(-1, roads.indexOf(99));
+        assertTrue("curve " + curveGap + ", ids " + idGap, curveGap * 10 < idGap);
+    }
+}
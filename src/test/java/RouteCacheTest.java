@@ -0,0 +1,140 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RouteCacheTest {
+    private static Route route(int length) {
+        return new Route(new int[length], length, length);
+    }
+
+    @Test
+    public void testKeyedByDirectedNodePairAndGeneration() {
+        RouteCache cache = new RouteCache(10, Long.MAX_VALUE);
+        Route ab = route(3);
+        cache.put(1, 2, 0, ab);
+        assertSame(ab, cache.get(1, 2, 0));
+        assertNull(cache.get(2, 1, 0));
+        assertNull(cache.get(1, 3, 0));
+        assertNull(cache.get(1, 2, 1));
+        Route far = route(4);
+        cache.put(-1, Integer.MAX_VALUE, 0, far);
+        assertSame(far, cache.get(-1, Integer.MAX_VALUE, 0));
+        assertNull(cache.get(Integer.MAX_VALUE, -1, 0));
+    }
+
+    @Test
+    public void testWeighsRoutesByLength() {
+        RouteCache cache = new RouteCache(100, 1000);
+        cache.put(0, 1, 0, route(100));
+        cache.put(0, 2, 0, route(100));
+        cache.put(0, 3, 0, route(100));
+        assertTrue(cache.bytes() <= 1000);
+        assertNull(cache.get(0, 1, 0));
+        assertNotNull(cache.get(0, 3, 0));
+        cache.put(0, 4, 0, route(1000));
+        assertNull(cache.get(0, 4, 0));
+    }
+
+    /** @return Whether <code>route</code> runs over the road between v and w, either way. */
+    private static boolean uses(Route route, int v, int w) {
+        for (int i = 0; i + 1 < route.nodes.length; i++) {
+            if (route.nodes[i] == v && route.nodes[i + 1] == w
+                    || route.nodes[i] == w && route.nodes[i + 1] == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A route found on the weights from before an overlay, and stored only after the overlay
+     * cleared the cache, must not be served afterwards.
+     */
+    @Test
+    public void testRouteFoundDuringOverlayIsNotServed() throws Exception {
+        RoadGraph roads = RouterTest.grid(20, 17);
+        CountDownLatch found = new CountDownLatch(1);
+        CountDownLatch overlaid = new CountDownLatch(1);
+        AtomicBoolean pause = new AtomicBoolean(true);
+        Router router = new Router(roads) {
+            @Override
+            public Route route(int start, int end) {
+                Route route = super.route(start, end);
+                if (pause.getAndSet(false)) {
+                    found.countDown();
+                    try {
+                        overlaid.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                return route;
+            }
+        };
+        RouteCache cache = new RouteCache(100, Long.MAX_VALUE);
+        int start = 0;
+        int end = roads.size() - 1;
+        Route[] before = new Route[1];
+        Thread search = new Thread(() -> before[0] = cache.route(router, start, end));
+        search.start();
+        found.await();
+        Route open = router.route(start, end);
+        int v = open.nodes[open.nodes.length / 2];
+        int w = open.nodes[open.nodes.length / 2 + 1];
+        router.overlay(new int[]{v}, new int[]{w}, new double[]{Double.POSITIVE_INFINITY});
+        cache.clear();
+        overlaid.countDown();
+        search.join();
+
+        assertTrue(uses(before[0], v, w));
+        Route after = cache.route(router, start, end);
+        assertFalse(uses(after, v, w));
+        assertFalse(uses(cache.route(router, start, end), v, w));
+        assertEquals(1, cache.hits());
+    }
+
+    /**
+     * Routes looked up while other threads close and reopen a road must, once the overlays
+     * stop, all be found on the final weights.
+     */
+    @Test
+    public void testConcurrentOverlaysAndRoutes() throws Exception {
+        RoadGraph roads = RouterTest.grid(20, 17);
+        Router router = new Router(roads);
+        RouteCache cache = new RouteCache(100, Long.MAX_VALUE);
+        int start = 0;
+        int end = roads.size() - 1;
+        Route open = router.route(start, end);
+        int v = open.nodes[open.nodes.length / 2];
+        int w = open.nodes[open.nodes.length / 2 + 1];
+        AtomicBoolean done = new AtomicBoolean();
+        Thread[] routers = new Thread[3];
+        for (int i = 0; i < routers.length; i++) {
+            int from = i;
+            routers[i] = new Thread(() -> {
+                while (!done.get()) {
+                    cache.route(router, from, end);
+                }
+            });
+            routers[i].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            double factor = i % 2 == 0 ? Double.POSITIVE_INFINITY : 1;
+            router.overlay(new int[]{v}, new int[]{w}, new double[]{factor});
+            cache.clear();
+        }
+        router.overlay(new int[]{v}, new int[]{w}, new double[]{Double.POSITIVE_INFINITY});
+        cache.clear();
+        done.set(true);
+        for (Thread thread : routers) {
+            thread.join();
+        }
+        for (int from = 0; from < routers.length; from++) {
+            Route route = cache.route(router, from, end);
+            assertEquals(router.route(from, end).distance, route.distance, 0);
+            assertFalse(uses(route, v, w));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class RoutePolylineTest {
+    /** Distance from point i to the segment a-b, in the test's unit pixels. */
+    private static double distance(double[] x, double[] y, int i, int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0
+                : Math.max(0, Math.min(1, ((x[i] - x[a]) * dx + (y[i] - y[a]) * dy) / length));
+        return Math.hypot(x[i] - x[a] - t * dx, y[i] - y[a] - t * dy);
+    }
+
+    /**
+     * At every depth the simplified line keeps both ends, keeps every node a finer depth would
+     * need, and passes within half a pixel of each node it drops.
+     */
+    @Test
+    public void testSimplifiesWithinHalfAPixel() {
+        Random random = new Random(19);
+        int n = 5000;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 1; i < n; i++) {
+            x[i] = x[i - 1] + random.nextDouble() * 0.02;
+            y[i] = y[i - 1] + (random.nextDouble() - 0.5) * 0.02;
+        }
+        RoutePolyline route = new RoutePolyline(new long[n], x, y, 1, 1);
+
+        int[] coarser = null;
+        for (int depth = 0; depth <= RoutePolyline.MAX_DEPTH; depth++) {
+            int[] kept = route.nodes(depth);
+            double limit = 0.5 / (1 << depth);
+            assertEquals(0, kept[0]);
+            assertEquals(n - 1, kept[kept.length - 1]);
+            for (int k = 1; k < kept.length; k++) {
+                assertTrue(kept[k - 1] < kept[k]);
+                for (int i = kept[k - 1] + 1; i < kept[k]; i++) {
+                    assertTrue(distance(x, y, i, kept[k - 1], kept[k]) <= limit);
+                }
+            }
+            if (coarser != null) {
+                int k = 0;
+                for (int i : kept) {
+                    if (k < coarser.length && coarser[k] == i) {
+                        k++;
+                    }
+                }
+                assertEquals(coarser.length, k);
+                assertTrue(coarser.length <= kept.length);
+            }
+            coarser = kept;
+        }
+        assertTrue(route.nodes(0).length < n / 50);
+        assertSame(route.nodes(RoutePolyline.MAX_DEPTH), route.nodes(12));
+    }
+
+    @Test
+    public void testShortRoutes() {
+        assertEquals(0, RoutePolyline.EMPTY.nodes(3).length);
+        RoutePolyline one = new RoutePolyline(new long[]{7}, new double[]{1}, new double[]{2},
+                1, 1);
+        assertArrayEquals(new int[]{0}, one.nodes(0));
+        RoutePolyline line = new RoutePolyline(new long[4], new double[]{0, 1, 2, 3},
+                new double[]{0, 1, 2, 3}, 1, 1);
+        assertArrayEquals(new int[]{0, 3}, line.nodes(RoutePolyline.MAX_DEPTH));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, line.nodes());
+        assertEquals(0, RoutePolyline.EMPTY.nodes().length);
+    }
+
+    /** The depth lists are built on first use, once, however many threads ask together. */
+    @Test
+    public void testSimplifiesOnceOnFirstUse() throws Exception {
+        int n = 5000;
+        Random random = new Random(3);
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 1; i < n; i++) {
+            x[i] = x[i - 1] + random.nextDouble() * 0.02;
+            y[i] = y[i - 1] + (random.nextDouble() - 0.5) * 0.02;
+        }
+        RoutePolyline route = new RoutePolyline(new long[n], x, y, 1, 1);
+        assertEquals(n, route.nodes().length);
+        int[][] seen = new int[8][];
+        Thread[] threads = new Thread[seen.length];
+        for (int t = 0; t < threads.length; t++) {
+            int slot = t;
+            threads[t] = new Thread(() -> seen[slot] = route.nodes(2));
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int[] kept : seen) {
+            assertSame(route.nodes(2), kept);
+        }
+    }
+}
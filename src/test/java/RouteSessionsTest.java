@@ -0,0 +1,94 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+
+public class RouteSessionsTest {
+    private long now;
+
+    private static RoutePolyline route(long... ids) {
+        return new RoutePolyline(ids, new double[ids.length], new double[ids.length], 1, 1);
+    }
+
+    @Test
+    public void testClientsSeeOnlyTheirOwnRoute() {
+        RouteSessions sessions = new RouteSessions(10, 1000, () -> now);
+        sessions.put("a", route(1, 2, 3));
+        sessions.put("b", route(4, 5));
+        assertArrayEquals(new long[]{1L, 2L, 3L}, sessions.get("a").ids);
+        assertArrayEquals(new long[]{4L, 5L}, sessions.get("b").ids);
+        assertTrue(sessions.get("c").isEmpty());
+        assertTrue(sessions.get(null).isEmpty());
+        sessions.remove("a");
+        assertTrue(sessions.get("a").isEmpty());
+        assertArrayEquals(new long[]{4L, 5L}, sessions.get("b").ids);
+    }
+
+    @Test
+    public void testIdleRoutesExpireAndStoreIsBounded() {
+        RouteSessions sessions = new RouteSessions(2, 1000, () -> now);
+        sessions.put("a", route(1));
+        now += 600_000_000L;
+        sessions.put("b", route(2));
+        assertArrayEquals(new long[]{1L}, sessions.get("a").ids);
+        now += 600_000_000L;
+        assertFalse(sessions.get("b").isEmpty());
+        now += 1_100_000_000L;
+        assertTrue(sessions.get("a").isEmpty());
+
+        sessions.put("c", route(3));
+        sessions.put("d", route(4));
+        now += 1;
+        sessions.get("c");
+        sessions.put("e", route(5));
+        assertTrue(sessions.size() <= 2);
+        assertTrue(sessions.get("d").isEmpty());
+        assertArrayEquals(new long[]{3L}, sessions.get("c").ids);
+        assertArrayEquals(new long[]{5L}, sessions.get("e").ids);
+    }
+
+    @Test
+    public void testStoringSweepsExpiredSessions() {
+        RouteSessions sessions = new RouteSessions(100_000, 1000, () -> now);
+        for (int i = 0; i < 50_000; i++) {
+            sessions.put("old" + i, route(i));
+        }
+        now += 500_000_000L;
+        sessions.put("young", route(1));
+        now += 600_000_000L;
+        sessions.put("new", route(2));
+        assertEquals(2, sessions.size());
+        assertTrue(sessions.get("old0").isEmpty());
+        assertArrayEquals(new long[]{1L}, sessions.get("young").ids);
+    }
+
+    /** An expired session is removed by the lookup that finds it, not moved up the queue. */
+    @Test
+    public void testLookupRemovesExpiredSession() {
+        RouteSessions sessions = new RouteSessions(2, 1000, () -> now);
+        sessions.put("a", route(1));
+        sessions.put("b", route(2));
+        now += 1_100_000_000L;
+        assertTrue(sessions.get("a").isEmpty());
+        assertEquals(1, sessions.size());
+        sessions.put("c", route(3));
+        sessions.put("d", route(4));
+        assertEquals(2, sessions.size());
+        assertArrayEquals(new long[]{3L}, sessions.get("c").ids);
+        assertArrayEquals(new long[]{4L}, sessions.get("d").ids);
+    }
+
+    /** A lookup must not wait for a thread that is storing a route. */
+    @Test
+    public void testLookupsDoNotWaitForStores() throws Exception {
+        RouteSessions sessions = new RouteSessions(10, 1000);
+        sessions.put("a", route(1, 2));
+        long[][] seen = new long[1][];
+        Thread reader = new Thread(() -> seen[0] = sessions.get("a").ids);
+        synchronized (sessions) {
+            reader.start();
+            reader.join(10_000);
+            assertFalse(reader.isAlive());
+        }
+        assertArrayEquals(new long[]{1L, 2L}, seen[0]);
+    }
+}
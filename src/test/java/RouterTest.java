@@ -0,0 +1,475 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class RouterTest {
+    /**
+     * Build a jittered grid of <code>side</code> x <code>side</code> road nodes, with a few
+     * streets missing so that shortest paths are not trivially straight.
+     */
+    static RoadGraph grid(int side, long seed) {
+        Random random = new Random(seed);
+        int n = side * side;
+        long[] ids = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        List<List<Integer>> adjacent = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            ids[i] = 1000 + 3 * i;
+            lat[i] = 37.88 - (i / side + random.nextDouble() * 0.6) * 0.001;
+            lon[i] = -122.29 + (i % side + random.nextDouble() * 0.6) * 0.001;
+            adjacent.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            if (i % side + 1 < side && random.nextDouble() < 0.85) {
+                adjacent.get(i).add(i + 1);
+                adjacent.get(i + 1).add(i);
+            }
+            if (i + side < n && random.nextDouble() < 0.85) {
+                adjacent.get(i).add(i + side);
+                adjacent.get(i + side).add(i);
+            }
+        }
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + adjacent.get(i).size();
+        }
+        int[] neighbors = new int[offsets[n]];
+        byte[] highway = new byte[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < adjacent.get(i).size(); j++) {
+                int k = adjacent.get(i).get(j);
+                neighbors[offsets[i] + j] = k;
+                /* Rows and columns get their own road type, the same in both directions. */
+                highway[offsets[i] + j] = (byte) (Math.abs(i - k) == 1
+                        ? (i / side) % Highway.values().length
+                        : (i % side) % Highway.values().length);
+            }
+        }
+        return new RoadGraph(ids, lat, lon, offsets, neighbors, highway);
+    }
+
+    /**
+     * Split every road of <code>roads</code> into <code>points</code> + 1 segments through
+     * shape points along it, and add a ring of shape points that meets no other road.
+     */
+    static RoadGraph withShapePoints(RoadGraph roads, int points, long seed) {
+        Random random = new Random(seed);
+        List<double[]> coordinates = new ArrayList<>();
+        List<List<Integer>> adjacent = new ArrayList<>();
+        List<List<Integer>> types = new ArrayList<>();
+        for (int v = 0; v < roads.size(); v++) {
+            coordinates.add(new double[]{roads.lat[v], roads.lon[v]});
+            adjacent.add(new ArrayList<>());
+            types.add(new ArrayList<>());
+        }
+        for (int v = 0; v < roads.size(); v++) {
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int w = roads.neighbors[e];
+                if (w < v) {
+                    continue;
+                }
+                int prev = v;
+                for (int i = 1; i <= points + 1; i++) {
+                    int next = w;
+                    if (i <= points) {
+                        double f = (i + random.nextDouble() - 0.5) / (points + 1);
+                        next = coordinates.size();
+                        coordinates.add(new double[]{
+                            roads.lat[v] + f * (roads.lat[w] - roads.lat[v])
+                                + 1e-5 * random.nextDouble(),
+                            roads.lon[v] + f * (roads.lon[w] - roads.lon[v])});
+                        adjacent.add(new ArrayList<>());
+                        types.add(new ArrayList<>());
+                    }
+                    adjacent.get(prev).add(next);
+                    types.get(prev).add((int) roads.highway[e]);
+                    adjacent.get(next).add(prev);
+                    types.get(next).add((int) roads.highway[e]);
+                    prev = next;
+                }
+            }
+        }
+        int ring = coordinates.size();
+        for (int i = 0; i < 5; i++) {
+            double angle = 2 * Math.PI * i / 5;
+            coordinates.add(new double[]{37.9 + 0.001 * Math.sin(angle),
+                -122.2 + 0.001 * Math.cos(angle)});
+            adjacent.add(new ArrayList<>());
+            types.add(new ArrayList<>());
+        }
+        for (int i = 0; i < 5; i++) {
+            int v = ring + i;
+            int w = ring + (i + 1) % 5;
+            adjacent.get(v).add(w);
+            types.get(v).add(0);
+            adjacent.get(w).add(v);
+            types.get(w).add(0);
+        }
+
+        int n = coordinates.size();
+        long[] ids = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        int[] offsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            ids[v] = v < roads.size() ? roads.ids[v] : roads.ids[roads.size() - 1] + v;
+            lat[v] = coordinates.get(v)[0];
+            lon[v] = coordinates.get(v)[1];
+            offsets[v + 1] = offsets[v] + adjacent.get(v).size();
+        }
+        int[] neighbors = new int[offsets[n]];
+        byte[] highway = new byte[offsets[n]];
+        for (int v = 0; v < n; v++) {
+            for (int j = 0; j < adjacent.get(v).size(); j++) {
+                neighbors[offsets[v] + j] = adjacent.get(v).get(j);
+                highway[offsets[v] + j] = (byte) (int) types.get(v).get(j);
+            }
+        }
+        return new RoadGraph(ids, lat, lon, offsets, neighbors, highway);
+    }
+
+    /** Reference Dijkstra distance, by a quadratic scan with no queue at all. */
+    private static double dijkstra(RoadGraph roads, double[] weights, int start, int end) {
+        double[] dist = new double[roads.size()];
+        boolean[] done = new boolean[roads.size()];
+        Arrays.fill(dist, Double.POSITIVE_INFINITY);
+        dist[start] = 0;
+        while (true) {
+            int v = -1;
+            for (int i = 0; i < roads.size(); i++) {
+                if (!done[i] && (v == -1 || dist[i] < dist[v])) {
+                    v = i;
+                }
+            }
+            if (v == -1 || dist[v] == Double.POSITIVE_INFINITY || v == end) {
+                return dist[end];
+            }
+            done[v] = true;
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int w = roads.neighbors[e];
+                dist[w] = Math.min(dist[w], dist[v] + weights[e]);
+            }
+        }
+    }
+
+    private static double length(Router router, int[] path) {
+        double length = 0;
+        for (int i = 0; i + 1 < path.length; i++) {
+            length += router.euclDist(path[i], path[i + 1]);
+        }
+        return length;
+    }
+
+    @Test
+    public void testShortestPathIsShortest() {
+        RoadGraph roads = grid(25, 1);
+        Router router = new Router(roads);
+        Random random = new Random(2);
+        for (int q = 0; q < 50; q++) {
+            int start = random.nextInt(roads.size());
+            int end = random.nextInt(roads.size());
+            int[] path = router.shortestPath(start, end);
+            double expected = dijkstra(roads, router.weights(), start, end);
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertEquals(0, path.length);
+                continue;
+            }
+            assertEquals(start, path[0]);
+            assertEquals(end, path[path.length - 1]);
+            assertEquals(expected, length(router, path), 1e-12);
+        }
+    }
+
+    @Test
+    public void testBidirectionalIsShortest() {
+        RoadGraph roads = grid(25, 3);
+        Router router = new Router(roads);
+        router.setAlgorithm(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+        Random random = new Random(4);
+        for (int q = 0; q < 200; q++) {
+            int start = random.nextInt(roads.size());
+            int end = q == 0 ? start : random.nextInt(roads.size());
+            Route route = router.route(start, end);
+            double expected = dijkstra(roads, router.weights(), start, end);
+            if (expected == Double.POSITIVE_INFINITY) {
+                assertTrue(route.isEmpty());
+                continue;
+            }
+            assertEquals(start, route.nodes[0]);
+            assertEquals(end, route.nodes[route.nodes.length - 1]);
+            assertEquals(expected, length(router, route.nodes), 1e-12);
+            assertEquals(expected, route.distance, 1e-12);
+            assertTrue(start == end || route.nodesExpanded > 0);
+        }
+    }
+
+    @Test
+    public void testEveryMetricIsShortest() {
+        RoadGraph roads = grid(20, 13);
+        for (EdgeMetric metric : EdgeMetric.values()) {
+            Router router = new Router(roads, metric);
+            Router bidirectional = new Router(roads, metric);
+            bidirectional.setAlgorithm(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+            Random random = new Random(14);
+            for (int q = 0; q < 40; q++) {
+                int start = random.nextInt(roads.size());
+                int end = random.nextInt(roads.size());
+                double expected = dijkstra(roads, roads.weights(metric), start, end);
+                double tolerance = expected * 1e-12;
+                assertEquals(metric + " " + start + " -> " + end, expected,
+                        router.route(start, end).distance, tolerance);
+                assertEquals(metric + " " + start + " -> " + end, expected,
+                        bidirectional.route(start, end).distance, tolerance);
+            }
+        }
+    }
+
+    /**
+     * Closing the roads of a route must route around them at once, with and without a
+     * hierarchy, and reopening them must bring the route back.
+     */
+    @Test
+    public void testOverlayClosesAndReopensRoads() {
+        RoadGraph roads = grid(20, 17);
+        Router astar = new Router(roads);
+        Router ch = new Router(roads);
+        ch.useHierarchy(ContractionHierarchy.build(roads));
+        int start = 0;
+        int end = roads.size() - 1;
+        Route before = astar.route(start, end);
+        assertFalse(before.isEmpty());
+
+        int mid = before.nodes.length / 2;
+        int[] v = {before.nodes[mid - 1], before.nodes[mid]};
+        int[] w = {before.nodes[mid], before.nodes[mid + 1]};
+        double[] closed = {Double.POSITIVE_INFINITY, 2};
+        astar.overlay(v, w, closed);
+        ch.overlay(v, w, closed);
+        double expected = dijkstra(roads, astar.weights(), start, end);
+        assertTrue(expected > before.distance);
+        for (Router router : new Router[]{astar, ch}) {
+            Route around = router.route(start, end);
+            assertEquals(expected, around.distance, 1e-12);
+            for (int i = 0; i + 1 < around.nodes.length; i++) {
+                assertFalse(around.nodes[i] == v[0] && around.nodes[i + 1] == w[0]);
+            }
+        }
+
+        double[] reopened = {1, 1};
+        astar.overlay(v, w, reopened);
+        ch.overlay(v, w, reopened);
+        assertEquals(before.distance, astar.route(start, end).distance, 0);
+        assertEquals(before.distance, ch.route(start, end).distance, 1e-12);
+        try {
+            astar.overlay(v, w, new double[]{0.5, 1});
+            fail("Speeding a road up must be refused.");
+        } catch (IllegalArgumentException expectedFailure) {
+            assertArrayEquals(roads.weights(EdgeMetric.DEGREES), astar.weights(), 0);
+        }
+        try {
+            astar.overlay(new int[]{start}, new int[]{end}, new double[]{2});
+            fail("Only roads can be overlaid.");
+        } catch (IllegalArgumentException expectedFailure) {
+            assertEquals("No road joins " + roads.ids[start] + " and " + roads.ids[end],
+                    expectedFailure.getMessage());
+        }
+    }
+
+    /**
+     * Searches over the chains must find shortest routes that list every shape point on them,
+     * between endpoints that are shape points too, on the same chain or on a ring.
+     */
+    @Test
+    public void testChainsKeepEveryNode() {
+        RoadGraph roads = withShapePoints(grid(12, 19), 3, 20);
+        ChainGraph chains = new ChainGraph(roads);
+        assertTrue(chains.junctionCount() * 3 < roads.size());
+        Router astar = new Router(roads, chains, EdgeMetric.DISTANCE);
+        Router bidirectional = new Router(roads, chains, EdgeMetric.DISTANCE);
+        bidirectional.setAlgorithm(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+        double[] weights = astar.weights();
+        Random random = new Random(21);
+        int ring = roads.size() - 5;
+        int[][] pairs = new int[120][];
+        for (int q = 0; q < pairs.length; q++) {
+            int start = random.nextInt(roads.size());
+            pairs[q] = new int[]{start, random.nextInt(roads.size())};
+        }
+        /* Shape points on one chain, either order, and around the ring both ways. */
+        int shape = roads.neighbors[roads.offsets[0]];
+        int along = roads.neighbors[chains.onward(0, shape)];
+        pairs[0] = new int[]{shape, along};
+        pairs[1] = new int[]{along, shape};
+        pairs[2] = new int[]{ring + 1, ring + 3};
+        pairs[3] = new int[]{ring, ring + 4};
+        pairs[4] = new int[]{0, ring};
+        pairs[5] = new int[]{shape, shape};
+
+        int[] sources = new int[pairs.length];
+        int[] targets = new int[pairs.length];
+        for (int q = 0; q < pairs.length; q++) {
+            sources[q] = pairs[q][0];
+            targets[q] = pairs[q][1];
+        }
+        double[][] matrix = astar.distanceMatrix(sources, targets);
+        for (int q = 0; q < pairs.length; q++) {
+            int start = pairs[q][0];
+            int end = pairs[q][1];
+            double expected = dijkstra(roads, weights, start, end);
+            double tolerance = 1e-9 * expected;
+            assertEquals(expected, matrix[q][q], tolerance);
+            for (Router router : new Router[]{astar, bidirectional}) {
+                Route route = router.route(start, end);
+                if (expected == Double.POSITIVE_INFINITY) {
+                    assertTrue(route.isEmpty());
+                    continue;
+                }
+                assertEquals(start + " -> " + end, expected, route.distance, tolerance);
+                assertEquals(start, route.nodes[0]);
+                assertEquals(end, route.nodes[route.nodes.length - 1]);
+                double length = 0;
+                for (int i = 0; i + 1 < route.nodes.length; i++) {
+                    int e = roads.edge(route.nodes[i], route.nodes[i + 1]);
+                    assertTrue("Route " + start + " -> " + end + " skips a node", e != -1);
+                    length += weights[e];
+                }
+                assertEquals(expected, length, tolerance);
+            }
+        }
+    }
+
+    /**
+     * Routes between connected components must come back empty without a search, and
+     * snapping within a component must find the nearest node of that component.
+     */
+    @Test
+    public void testComponentsFailAtOnce() {
+        RoadGraph roads = withShapePoints(grid(10, 23), 1, 24);
+        int ring = roads.size() - 5;
+        assertEquals(0, roads.component[0]);
+        assertTrue(roads.component[ring] > 0);
+        for (int i = 1; i < 5; i++) {
+            assertEquals(roads.component[ring], roads.component[ring + i]);
+        }
+        for (Router.Algorithm algorithm : new Router.Algorithm[]{Router.Algorithm.ASTAR,
+            Router.Algorithm.BIDIRECTIONAL_ASTAR}) {
+            Router router = new Router(roads);
+            router.setAlgorithm(algorithm);
+            Route route = router.route(0, ring + 2);
+            assertTrue(route.isEmpty());
+            assertEquals(0, route.nodesExpanded);
+        }
+        double[][] matrix = new Router(roads).distanceMatrix(new int[]{ring, 0},
+                new int[]{0, ring + 1});
+        assertEquals(Double.POSITIVE_INFINITY, matrix[0][0], 0);
+        assertTrue(matrix[0][1] > 0 && matrix[0][1] < Double.POSITIVE_INFINITY);
+        assertTrue(matrix[1][0] == 0 && matrix[1][1] == Double.POSITIVE_INFINITY);
+
+        SpatialIndex index = new SpatialIndex(roads);
+        double lon = roads.lon[ring];
+        double lat = roads.lat[ring];
+        assertEquals(roads.component[ring], roads.component[index.nearest(lon, lat)]);
+        int expected = -1;
+        for (int v = 0; v < roads.size(); v++) {
+            if (roads.component[v] == 0 && (expected == -1 || Math.hypot(roads.lon[v] - lon,
+                    roads.lat[v] - lat) < Math.hypot(roads.lon[expected] - lon,
+                    roads.lat[expected] - lat))) {
+                expected = v;
+            }
+        }
+        assertEquals(expected, index.nearest(lon, lat, 0));
+        assertEquals(-1, index.nearest(lon, lat, roads.size()));
+    }
+
+    @Test
+    public void testDistanceMatrixMatchesRoutes() {
+        RoadGraph roads = grid(30, 5);
+        Router router = new Router(roads);
+        Random random = new Random(6);
+        int[] sources = new int[12];
+        int[] targets = new int[9];
+        for (int i = 0; i < sources.length; i++) {
+            sources[i] = random.nextInt(roads.size());
+        }
+        for (int j = 0; j < targets.length; j++) {
+            targets[j] = random.nextInt(roads.size());
+        }
+        targets[1] = targets[0];
+        targets[2] = sources[3];
+        double[][] matrix = router.distanceMatrix(sources, targets);
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                assertEquals(router.route(sources[i], targets[j]).distance, matrix[i][j],
+                        1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void testReachableMatchesRoutes() {
+        RoadGraph roads = grid(15, 9);
+        Router router = new Router(roads);
+        int source = roads.size() / 2;
+        double limit = 0.006;
+        Isochrone reached = router.reachable(source, limit);
+        double[] expected = new double[roads.size()];
+        int inside = 0;
+        for (int v = 0; v < roads.size(); v++) {
+            expected[v] = router.route(source, v).distance;
+            if (expected[v] <= limit) {
+                inside++;
+            }
+        }
+        assertEquals(inside, reached.nodes.length);
+        for (int i = 0; i < reached.nodes.length; i++) {
+            assertEquals(expected[reached.nodes[i]], reached.distances[i], 1e-12);
+            assertTrue(i == 0 || reached.distances[i - 1] <= reached.distances[i]);
+        }
+        assertTrue(reached.hull(16).length >= 3);
+    }
+
+    /**
+     * Fire many routes at one shared Router from several threads at once, and check every
+     * result against the same route computed single-threaded.
+     */
+    @Test
+    public void testConcurrentRoutesMatchSequential() throws Exception {
+        RoadGraph roads = grid(80, 3);
+        Router router = new Router(roads);
+        Random random = new Random(4);
+        int queries = 400;
+        int[][] pairs = new int[queries][];
+        int[][] expected = new int[queries][];
+        for (int q = 0; q < queries; q++) {
+            pairs[q] = new int[]{random.nextInt(roads.size()), random.nextInt(roads.size())};
+            expected[q] = router.shortestPath(pairs[q][0], pairs[q][1]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<int[]>> results = new ArrayList<>();
+            for (int round = 0; round < 4; round++) {
+                for (int q = 0; q < queries; q++) {
+                    int[] pair = pairs[q];
+                    Callable<int[]> route = () -> router.shortestPath(pair[0], pair[1]);
+                    results.add(pool.submit(route));
+                }
+            }
+            for (int i = 0; i < results.size(); i++) {
+                assertArrayEquals("Route " + i % queries + " differed under concurrency",
+                        expected[i % queries], results.get(i).get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,432 @@
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Stand-alone timing harness for the routing hot paths. Not a JUnit test; run it by hand
+ * against a real extract:
+ * <pre>
+ *     java -cp target/classes:target/test-classes RoutingBenchmark [path/to/map.osm]
+ * </pre>
+ * Every case is warmed up before it is timed, and each prints its cost per operation.
+ */
+public class RoutingBenchmark {
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long MEASURE_NANOS = 2_000_000_000L;
+
+    /** Keeps the JIT from discarding the measured work. */
+    static volatile double sink;
+
+    public static void main(String[] args) {
+        String dbPath = args.length > 0 ? args[0] : "berkeley.osm";
+        GraphDB g = new GraphDB(dbPath);
+        RoadGraph roads = g.roads;
+        System.out.println(roads.size() + " road nodes, " + roads.edgeCount() + " edges");
+        System.out.println(g.chains.junctionCount() + " junctions, " + g.chains.chainCount()
+                + " chains");
+
+        benchmarkExpansion(roads);
+        benchmarkSnapping(g);
+        benchmarkLongRoutes(g);
+        benchmarkSearchEffort(g);
+        benchmarkIsochrones(g);
+        benchmarkNodeOrder(g);
+    }
+
+    /**
+     * Cost of one edge relaxation's distance computations: the old Node kept its coordinates
+     * as Strings and parsed all four of them for every euclDist call.
+     */
+    private static void benchmarkExpansion(RoadGraph roads) {
+        String[] latText = new String[roads.size()];
+        String[] lonText = new String[roads.size()];
+        for (int i = 0; i < roads.size(); i++) {
+            latText[i] = Double.toString(roads.lat[i]);
+            lonText[i] = Double.toString(roads.lon[i]);
+        }
+        int goal = roads.size() / 2;
+
+        report("expansion, String coordinates", roads.edgeCount(), () -> {
+            double sum = 0;
+            for (int v = 0; v < roads.size(); v++) {
+                for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                    int n = roads.neighbors[e];
+                    sum += textDist(latText, lonText, v, n) + textDist(latText, lonText, n, goal);
+                }
+            }
+            sink = sum;
+        });
+        report("expansion, double coordinates", roads.edgeCount(), () -> {
+            double sum = 0;
+            for (int v = 0; v < roads.size(); v++) {
+                for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                    int n = roads.neighbors[e];
+                    sum += dist(roads, v, n) + dist(roads, n, goal);
+                }
+            }
+            sink = sum;
+        });
+    }
+
+    /** Nearest-node snapping: the old linear scan against the spatial index. */
+    private static void benchmarkSnapping(GraphDB g) {
+        RoadGraph roads = g.roads;
+        int queries = 1000;
+        double[] lon = new double[queries];
+        double[] lat = new double[queries];
+        Random random = new Random(0);
+        for (int i = 0; i < queries; i++) {
+            lon[i] = MapServer.ROOT_ULLON
+                    + random.nextDouble() * (MapServer.ROOT_LRLON - MapServer.ROOT_ULLON);
+            lat[i] = MapServer.ROOT_LRLAT
+                    + random.nextDouble() * (MapServer.ROOT_ULLAT - MapServer.ROOT_LRLAT);
+        }
+
+        report("snap, linear scan", queries, () -> {
+            int found = 0;
+            for (int q = 0; q < queries; q++) {
+                double min = Double.POSITIVE_INFINITY;
+                for (int n = 0; n < roads.size(); n++) {
+                    double d = Math.sqrt(Math.pow(lon[q] - roads.lon[n], 2)
+                            + Math.pow(lat[q] - roads.lat[n], 2));
+                    if (d < min) {
+                        min = d;
+                        found = n;
+                    }
+                }
+            }
+            sink = found;
+        });
+        report("snap, spatial index", queries, () -> {
+            int found = 0;
+            for (int q = 0; q < queries; q++) {
+                found += g.index.nearest(lon[q], lat[q]);
+            }
+            sink = found;
+        });
+    }
+
+    /**
+     * @return Pairs of road nodes snapped to opposite corners and edge midpoints of the map,
+     * so each route crosses most of the extent.
+     */
+    static int[][] crossTownPairs(GraphDB g) {
+        double[][] corners = {
+            {MapServer.ROOT_ULLON, MapServer.ROOT_ULLAT, MapServer.ROOT_LRLON, MapServer.ROOT_LRLAT},
+            {MapServer.ROOT_LRLON, MapServer.ROOT_ULLAT, MapServer.ROOT_ULLON, MapServer.ROOT_LRLAT},
+            {(MapServer.ROOT_ULLON + MapServer.ROOT_LRLON) / 2, MapServer.ROOT_ULLAT,
+                (MapServer.ROOT_ULLON + MapServer.ROOT_LRLON) / 2, MapServer.ROOT_LRLAT},
+            {MapServer.ROOT_ULLON, (MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2,
+                MapServer.ROOT_LRLON, (MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2},
+        };
+        int[][] pairs = new int[corners.length][];
+        for (int i = 0; i < corners.length; i++) {
+            pairs[i] = new int[]{g.index.nearest(corners[i][0], corners[i][1]),
+                g.index.nearest(corners[i][2], corners[i][3])};
+        }
+        return pairs;
+    }
+
+    /**
+     * Long routes with the indexed heap against the java.util.PriorityQueue A* it replaced,
+     * which allocated an entry per relaxation and skipped stale entries on the way out.
+     */
+    private static void benchmarkLongRoutes(GraphDB g) {
+        RoadGraph roads = g.roads;
+        Router router = new Router(roads);
+        int[][] pairs = crossTownPairs(g);
+        for (int[] pair : pairs) {
+            if (!Arrays.equals(router.shortestPath(pair[0], pair[1]),
+                    priorityQueueRoute(roads, pair[0], pair[1]))) {
+                System.out.println("warning: heap and PriorityQueue routes differ");
+            }
+        }
+
+        report("long route, PriorityQueue A*", pairs.length, () -> {
+            int length = 0;
+            for (int[] pair : pairs) {
+                length += priorityQueueRoute(roads, pair[0], pair[1]).length;
+            }
+            sink = length;
+        });
+        report("long route, indexed heap A*", pairs.length, () -> {
+            int length = 0;
+            for (int[] pair : pairs) {
+                length += router.shortestPath(pair[0], pair[1]).length;
+            }
+            sink = length;
+        });
+
+        Router hierarchy = new Router(roads);
+        hierarchy.useHierarchy(g.hierarchy());
+        report("long route, contraction hierarchy", pairs.length, () -> {
+            int length = 0;
+            for (int[] pair : pairs) {
+                length += hierarchy.shortestPath(pair[0], pair[1]).length;
+            }
+            sink = length;
+        });
+    }
+
+    /**
+     * Nodes settled and time per long route for each search, as reported on /route in the
+     * X-Nodes-Expanded header.
+     */
+    private static void benchmarkSearchEffort(GraphDB g) {
+        int[][] pairs = crossTownPairs(g);
+        Router astar = new Router(g.roads);
+        Router bidirectional = new Router(g.roads);
+        bidirectional.setAlgorithm(Router.Algorithm.BIDIRECTIONAL_ASTAR);
+        Router hierarchy = new Router(g.roads);
+        hierarchy.useHierarchy(g.hierarchy());
+        Landmarks.Strategy[] strategies = Landmarks.Strategy.values();
+        Router[] routers = new Router[3 + strategies.length];
+        String[] names = new String[routers.length];
+        routers[0] = astar;
+        names[0] = "A*";
+        for (int i = 0; i < strategies.length; i++) {
+            long start = System.nanoTime();
+            Landmarks landmarks = Landmarks.build(g.roads, astar.weights(), 16,
+                    strategies[i]);
+            System.out.printf("%-45s %12.1f ms%n", "landmarks, " + strategies[i],
+                    (System.nanoTime() - start) / 1e6);
+            routers[1 + i] = new Router(g.roads);
+            routers[1 + i].useLandmarks(landmarks);
+            names[1 + i] = "ALT " + strategies[i];
+        }
+        routers[routers.length - 2] = bidirectional;
+        names[routers.length - 2] = "bidirectional A*";
+        routers[routers.length - 1] = hierarchy;
+        names[routers.length - 1] = "contraction hierarchy";
+
+        for (int i = 0; i < routers.length; i++) {
+            Router router = routers[i];
+            long expanded = 0;
+            for (int[] pair : pairs) {
+                expanded += router.route(pair[0], pair[1]).nodesExpanded;
+            }
+            System.out.printf("%-45s %12d nodes/op%n", "expanded, " + names[i],
+                    expanded / pairs.length);
+            report("long route, " + names[i], pairs.length, () -> {
+                int length = 0;
+                for (int[] pair : pairs) {
+                    length += router.route(pair[0], pair[1]).nodes.length;
+                }
+                sink = length;
+            });
+        }
+    }
+
+    /**
+     * Isochrones around the middle of the map at growing radii, against answering the same
+     * question with one route search per candidate node.
+     */
+    private static void benchmarkIsochrones(GraphDB g) {
+        Router router = new Router(g.roads);
+        int origin = g.index.nearest((MapServer.ROOT_ULLON + MapServer.ROOT_LRLON) / 2,
+                (MapServer.ROOT_ULLAT + MapServer.ROOT_LRLAT) / 2);
+        for (double radius : new double[]{0.002, 0.005, 0.01, 0.02}) {
+            System.out.printf("%-45s %12d nodes%n", "isochrone " + radius + " reached",
+                    router.reachable(origin, radius).nodes.length);
+            report("isochrone " + radius, 1, () -> sink = router.reachable(origin, radius)
+                    .nodes.length);
+        }
+        int[] candidates = g.index.kNearest(g.roads.lon[origin], g.roads.lat[origin], 200);
+        report("isochrone 0.002 by routes, per node", candidates.length, () -> {
+            int inside = 0;
+            for (int v : candidates) {
+                if (router.route(origin, v).distance <= 0.002) {
+                    inside++;
+                }
+            }
+            sink = inside;
+        });
+    }
+
+    /**
+     * Long routes and a wide isochrone on one graph numbered three ways: along the Hilbert
+     * curve, as RoadGraph.build does, by OSM id, and shuffled. The extract is followed by a
+     * generated street grid too large for the CPU caches.
+     */
+    private static void benchmarkNodeOrder(GraphDB g) {
+        int[][] pairs = crossTownPairs(g);
+        long[][] idPairs = new long[pairs.length][];
+        for (int i = 0; i < pairs.length; i++) {
+            idPairs[i] = new long[]{g.roads.ids[pairs[i][0]], g.roads.ids[pairs[i][1]]};
+        }
+        compareNodeOrders("extract", g.roads, idPairs, 0.01);
+
+        int side = 700;
+        int n = side * side;
+        RoadGraph grid = RouterTest.grid(side, 1);
+        long[][] gridPairs = {
+            {grid.ids[0], grid.ids[n - 1]},
+            {grid.ids[side - 1], grid.ids[n - side]},
+            {grid.ids[side / 2], grid.ids[n - side / 2]},
+            {grid.ids[n / 2 - side / 2], grid.ids[n / 2 + side / 2 - 1]},
+        };
+        compareNodeOrders("grid " + side + "x" + side, grid, gridPairs, 0.1);
+    }
+
+    private static void compareNodeOrders(String name, RoadGraph roads, long[][] idPairs,
+                                          double radius) {
+        int n = roads.size();
+        Integer[] boxed = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            boxed[i] = i;
+        }
+        Arrays.sort(boxed, (a, b) -> Long.compare(roads.ids[a], roads.ids[b]));
+        int[] byId = new int[n];
+        int[] shuffled = new int[n];
+        Random random = new Random(0);
+        for (int i = 0; i < n; i++) {
+            byId[i] = boxed[i];
+            int j = random.nextInt(i + 1);
+            shuffled[i] = shuffled[j];
+            shuffled[j] = i;
+        }
+        String[] names = {"Hilbert", "id", "shuffled"};
+        int[][] orders = {RoadGraph.hilbertOrder(roads.ids, roads.lat, roads.lon), byId, shuffled};
+        for (int k = 0; k < orders.length; k++) {
+            RoadGraph ordered = renumbered(roads, orders[k]);
+            Router router = new Router(ordered);
+            int[][] pairs = new int[idPairs.length][];
+            for (int i = 0; i < pairs.length; i++) {
+                pairs[i] = new int[]{ordered.indexOf(idPairs[i][0]),
+                    ordered.indexOf(idPairs[i][1])};
+            }
+            report(name + " long route, " + names[k] + " order", pairs.length, () -> {
+                int length = 0;
+                for (int[] pair : pairs) {
+                    length += router.shortestPath(pair[0], pair[1]).length;
+                }
+                sink = length;
+            });
+            int origin = pairs[pairs.length - 1][0];
+            report(name + " isochrone, " + names[k] + " order", 1,
+                    () -> sink = router.reachable(origin, radius).nodes.length);
+        }
+    }
+
+    /** @return A copy of <code>roads</code> with node order[i] renumbered to i. */
+    static RoadGraph renumbered(RoadGraph roads, int[] order) {
+        int n = roads.size();
+        int[] index = new int[n];
+        for (int i = 0; i < n; i++) {
+            index[order[i]] = i;
+        }
+        long[] ids = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        int[] offsets = new int[n + 1];
+        int[] neighbors = new int[roads.edgeCount()];
+        byte[] highway = new byte[roads.edgeCount()];
+        for (int i = 0; i < n; i++) {
+            int v = order[i];
+            ids[i] = roads.ids[v];
+            lat[i] = roads.lat[v];
+            lon[i] = roads.lon[v];
+            offsets[i + 1] = offsets[i] + roads.offsets[v + 1] - roads.offsets[v];
+            for (int e = roads.offsets[v], f = offsets[i]; e < roads.offsets[v + 1]; e++, f++) {
+                neighbors[f] = index[roads.neighbors[e]];
+                highway[f] = roads.highway[e];
+            }
+        }
+        return new RoadGraph(ids, lat, lon, offsets, neighbors, highway);
+    }
+
+    /** Queue entry of the PriorityQueue A*. */
+    private static class Entry implements Comparable<Entry> {
+        final int node;
+        final double distance;
+        final double priority;
+
+        Entry(int node, double distance, double priority) {
+            this.node = node;
+            this.distance = distance;
+            this.priority = priority;
+        }
+
+        @Override
+        public int compareTo(Entry o) {
+            return Double.compare(priority, o.priority);
+        }
+    }
+
+    private static int[] priorityQueueRoute(RoadGraph roads, int start, int end) {
+        double[] distance = new double[roads.size()];
+        int[] previous = new int[roads.size()];
+        boolean[] settled = new boolean[roads.size()];
+        Arrays.fill(distance, Double.POSITIVE_INFINITY);
+        PriorityQueue<Entry> queue = new PriorityQueue<>();
+        distance[start] = 0;
+        previous[start] = -1;
+        queue.add(new Entry(start, 0, dist(roads, start, end)));
+        while (!queue.isEmpty()) {
+            Entry curr = queue.remove();
+            int v = curr.node;
+            if (settled[v]) {
+                continue;
+            }
+            settled[v] = true;
+            if (v == end) {
+                break;
+            }
+            for (int e = roads.offsets[v]; e < roads.offsets[v + 1]; e++) {
+                int n = roads.neighbors[e];
+                double d = curr.distance + dist(roads, v, n);
+                if (!settled[n] && d < distance[n]) {
+                    distance[n] = d;
+                    previous[n] = v;
+                    queue.add(new Entry(n, d, d + dist(roads, n, end)));
+                }
+            }
+        }
+        if (!settled[end]) {
+            return new int[0];
+        }
+        int length = 0;
+        for (int n = end; n != -1; n = previous[n]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int n = end; n != -1; n = previous[n]) {
+            path[--length] = n;
+        }
+        return path;
+    }
+
+    private static double textDist(String[] lat, String[] lon, int v, int w) {
+        return Math.sqrt(Math.pow(Double.parseDouble(lon[w]) - Double.parseDouble(lon[v]), 2)
+                + Math.pow(Double.parseDouble(lat[w]) - Double.parseDouble(lat[v]), 2));
+    }
+
+    private static double dist(RoadGraph roads, int v, int w) {
+        return Math.sqrt(Math.pow(roads.lon[w] - roads.lon[v], 2)
+                + Math.pow(roads.lat[w] - roads.lat[v], 2));
+    }
+
+    /**
+     * Run <code>body</code> repeatedly, first to warm up and then for a fixed time, and print
+     * the mean time per operation.
+     * @param name Case name.
+     * @param opsPerRun How many operations a single call of <code>body</code> performs.
+     * @param body The measured work.
+     */
+    static void report(String name, long opsPerRun, Runnable body) {
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            body.run();
+        }
+        long runs = 0;
+        long start = System.nanoTime();
+        end = start + MEASURE_NANOS;
+        long now;
+        do {
+            body.run();
+            runs++;
+            now = System.nanoTime();
+        } while (now < end);
+        System.out.printf("%-45s %12.1f ns/op%n", name, (double) (now - start) / (runs * opsPerRun));
+    }
+}
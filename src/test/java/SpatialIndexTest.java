@@ -0,0 +1,161 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class SpatialIndexTest {
+    /**
+     * Random road nodes on a coarse lattice, so many are equally far from a query, with every
+     * tenth node placed on top of another and OSM ids in no particular order. Runs of nodes
+     * are joined into roads, making many connected components.
+     */
+    private static RoadGraph points(int n, long seed) {
+        Random random = new Random(seed);
+        long[] ids = new long[n];
+        double[] lat = new double[n];
+        double[] lon = new double[n];
+        List<Long> shuffled = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            shuffled.add(1000L + 7 * i);
+        }
+        Collections.shuffle(shuffled, random);
+        for (int i = 0; i < n; i++) {
+            ids[i] = shuffled.get(i);
+            if (i % 10 == 9) {
+                int twin = random.nextInt(i);
+                lat[i] = lat[twin];
+                lon[i] = lon[twin];
+            } else {
+                lat[i] = 37.82 + random.nextInt(60) * 0.001;
+                lon[i] = -122.30 + random.nextInt(60) * 0.001;
+            }
+        }
+        List<List<Integer>> adjacent = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            adjacent.add(new ArrayList<>());
+        }
+        for (int i = 0; i + 1 < n; i++) {
+            if (random.nextDouble() < 0.8) {
+                adjacent.get(i).add(i + 1);
+                adjacent.get(i + 1).add(i);
+            }
+        }
+        int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            offsets[i + 1] = offsets[i] + adjacent.get(i).size();
+        }
+        int[] neighbors = new int[offsets[n]];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < adjacent.get(i).size(); j++) {
+                neighbors[offsets[i] + j] = adjacent.get(i).get(j);
+            }
+        }
+        return new RoadGraph(ids, lat, lon, offsets, neighbors, new byte[offsets[n]]);
+    }
+
+    /** @return Every node of <code>component</code>, or all if -1, nearest first by id. */
+    private static int[] bruteForce(RoadGraph roads, double lon, double lat, int component) {
+        List<Integer> nodes = new ArrayList<>();
+        for (int v = 0; v < roads.size(); v++) {
+            if (component == -1 || roads.component[v] == component) {
+                nodes.add(v);
+            }
+        }
+        nodes.sort(Comparator.<Integer>comparingDouble(v -> {
+            double dLon = lon - roads.lon[v];
+            double dLat = lat - roads.lat[v];
+            return dLon * dLon + dLat * dLat;
+        }).thenComparingLong(v -> roads.ids[v]));
+        return nodes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /** Queries at random points and on top of nodes, some of them coincident ones. */
+    private static double[][] queries(RoadGraph roads, int count, long seed) {
+        Random random = new Random(seed);
+        double[][] queries = new double[count][];
+        for (int q = 0; q < count; q++) {
+            if (q % 2 == 0) {
+                int v = random.nextInt(roads.size());
+                queries[q] = new double[]{roads.lon[v], roads.lat[v]};
+            } else {
+                queries[q] = new double[]{-122.31 + random.nextDouble() * 0.08,
+                    37.81 + random.nextDouble() * 0.08};
+            }
+        }
+        return queries;
+    }
+
+    @Test
+    public void testNearestMatchesBruteForce() {
+        RoadGraph roads = points(3000, 4);
+        SpatialIndex index = new SpatialIndex(roads);
+        for (double[] q : queries(roads, 400, 5)) {
+            int[] expected = bruteForce(roads, q[0], q[1], -1);
+            assertEquals(expected[0], index.nearest(q[0], q[1]));
+            for (int k : new int[]{1, 2, 7, 64}) {
+                assertArrayEquals(Arrays.copyOf(expected, k), index.kNearest(q[0], q[1], k));
+            }
+        }
+    }
+
+    /** Asking for more nodes than there are returns every node, nearest first. */
+    @Test
+    public void testKNearestBeyondSize() {
+        RoadGraph roads = points(200, 6);
+        SpatialIndex index = new SpatialIndex(roads);
+        for (double[] q : queries(roads, 20, 7)) {
+            int[] expected = bruteForce(roads, q[0], q[1], -1);
+            assertArrayEquals(expected, index.kNearest(q[0], q[1], roads.size()));
+            assertArrayEquals(expected, index.kNearest(q[0], q[1], roads.size() + 50));
+        }
+        assertEquals(0, index.kNearest(-122.3, 37.85, 0).length);
+
+        RoadGraph empty = new RoadGraph(new long[0], new double[0], new double[0], new int[1],
+                new int[0], new byte[0]);
+        SpatialIndex none = new SpatialIndex(empty);
+        assertEquals(-1, none.nearest(-122.3, 37.85));
+        assertEquals(-1, none.nearest(-122.3, 37.85, 0));
+        assertEquals(0, none.kNearest(-122.3, 37.85, 5).length);
+    }
+
+    /** Coincident nodes are equally near every query; the lowest OSM id must win. */
+    @Test
+    public void testTiesGoToLowestId() {
+        RoadGraph roads = points(1000, 8);
+        SpatialIndex index = new SpatialIndex(roads);
+        int ties = 0;
+        for (int v = 0; v < roads.size(); v++) {
+            int[] expected = bruteForce(roads, roads.lon[v], roads.lat[v], -1);
+            int nearest = index.nearest(roads.lon[v], roads.lat[v]);
+            assertEquals(expected[0], nearest);
+            if (nearest != v) {
+                assertTrue(roads.ids[nearest] < roads.ids[v]);
+                ties++;
+            }
+        }
+        assertTrue(ties > 0);
+    }
+
+    @Test
+    public void testNearestInComponentMatchesBruteForce() {
+        RoadGraph roads = points(3000, 9);
+        SpatialIndex index = new SpatialIndex(roads);
+        int components = 0;
+        for (int c : roads.component) {
+            components = Math.max(components, c + 1);
+        }
+        assertTrue(components > 10);
+        Random random = new Random(10);
+        for (double[] q : queries(roads, 200, 11)) {
+            for (int c : new int[]{0, 1, random.nextInt(components), components - 1}) {
+                assertEquals(bruteForce(roads, q[0], q[1], c)[0], index.nearest(q[0], q[1], c));
+            }
+            assertEquals(-1, index.nearest(q[0], q[1], components));
+        }
+    }
+}
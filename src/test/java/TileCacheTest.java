@@ -0,0 +1,143 @@
+import static org.junit.Assert.*;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TileCacheTest {
+    private static BufferedImage tile() {
+        return new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsedOverBudget() throws Exception {
+        long tileBytes = TileCache.bytes(tile());
+        AtomicInteger loads = new AtomicInteger();
+        TileCache cache = new TileCache(2 * tileBytes, name -> {
+            loads.incrementAndGet();
+            return tile();
+        });
+        BufferedImage a = cache.get("1");
+        cache.get("2");
+        assertSame(a, cache.get("1"));
+        cache.get("3");
+        assertEquals(2, cache.size());
+        assertEquals(2 * tileBytes, cache.bytes());
+        assertSame(a, cache.get("1"));
+        assertEquals(3, loads.get());
+        cache.get("2");
+        assertEquals(4, loads.get());
+        assertEquals(2, cache.hits());
+        assertEquals(4, cache.misses());
+        assertEquals(1 / 3.0, cache.hitRate(), 1e-12);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+    }
+
+    /** Requests missing on the same tile at once share a single decode. */
+    @Test
+    public void testConcurrentMissesDecodeOnce() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger loads = new AtomicInteger();
+        TileCache cache = new TileCache(1 << 20, name -> {
+            loads.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return tile();
+        });
+        BufferedImage[] seen = new BufferedImage[8];
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < seen.length; i++) {
+            int slot = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    seen[slot] = cache.get("12");
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(100);
+        release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(1, loads.get());
+        for (BufferedImage image : seen) {
+            assertSame(seen[0], image);
+        }
+        assertEquals(1, cache.misses());
+        assertEquals(seen.length - 1, cache.hits());
+    }
+
+    @Test
+    public void testFailedDecodeIsNotCached() throws Exception {
+        AtomicInteger loads = new AtomicInteger();
+        TileCache cache = new TileCache(1 << 20, name -> {
+            if (loads.incrementAndGet() == 1) {
+                throw new IOException("corrupt");
+            }
+            return tile();
+        });
+        try {
+            cache.get("3");
+            fail();
+        } catch (IOException e) {
+            assertEquals("corrupt", e.getMessage());
+        }
+        assertEquals(0, cache.size());
+        assertNotNull(cache.get("3"));
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * Converting a tile to int RGB and copying its pixels into a raster must leave exactly
+     * what drawing it into the raster did, for translucent and palette tiles too.
+     */
+    @Test
+    public void testCopiedTilesMatchDrawnTiles() {
+        Random random = new Random(23);
+        BufferedImage translucent = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        BufferedImage indexed = new BufferedImage(256, 256, BufferedImage.TYPE_BYTE_INDEXED);
+        for (BufferedImage tile : new BufferedImage[]{translucent, indexed}) {
+            Graphics2D graphics = tile.createGraphics();
+            for (int i = 0; i < 200; i++) {
+                graphics.setColor(new Color(random.nextInt(), true));
+                graphics.fillRect(random.nextInt(256), random.nextInt(256), 1 + random.nextInt(60),
+                        1 + random.nextInt(60));
+            }
+            graphics.dispose();
+        }
+        BufferedImage drawn = new BufferedImage(512, 512, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = drawn.createGraphics();
+        graphics.drawImage(translucent, 256, 0, null);
+        graphics.drawImage(indexed, 0, 256, null);
+        graphics.dispose();
+
+        int[] pixels = new int[512 * 512];
+        Arrays.fill(pixels, 0x123456);
+        MapServer.copyTile(pixels, 512, 512, null, 0, 0);
+        MapServer.copyTile(pixels, 512, 512, TileCache.intRgb(translucent), 256, 0);
+        MapServer.copyTile(pixels, 512, 512, TileCache.intRgb(indexed), 0, 256);
+        MapServer.copyTile(pixels, 512, 512, tile().getSubimage(0, 0, 100, 200), 256, 256);
+        int[] expected = drawn.getRGB(0, 0, 512, 512, null, 0, 512);
+        for (int i = 0; i < pixels.length; i++) {
+            assertEquals("pixel " + i, expected[i] & 0xffffff, pixels[i] & 0xffffff);
+        }
+    }
+}